@@ -0,0 +1,74 @@
+package com.library.benchmark;
+
+import com.library.model.Book;
+import com.library.model.User;
+import com.library.service.DataService;
+import com.library.service.DatasetGenerator;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// A DataService over a generated catalog in a temporary data directory. The catalog is imported
+// from JSON once and checkpointed, so later loads read the binary snapshot as the app does.
+@State(Scope.Benchmark)
+public class LibraryState {
+    private static final int SAMPLE_SIZE = 1024;
+
+    @Param({"1000", "10000", "100000"})
+    public int books;
+
+    @Param({"42"})
+    public long seed;
+
+    public File dataDir;
+    public DataService dataService;
+    // Random picks from the catalog, so lookups do not keep hitting the same entries
+    public Book[] sampleBooks = new Book[SAMPLE_SIZE];
+    public String[] sampleUserIds = new String[SAMPLE_SIZE];
+    public String[] sampleEmails = new String[SAMPLE_SIZE];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("library-bench").toFile();
+        DatasetGenerator dataset = new DatasetGenerator(seed, books, Math.max(1, books / 5));
+        if (!dataset.writeJson(dataDir)) {
+            throw new IOException("Could not write the dataset to " + dataDir);
+        }
+        dataService = new DataService(dataDir, true);
+        dataService.saveData();
+
+        Random random = new Random(seed);
+        List<Book> allBooks = dataService.getAllBooks();
+        List<User> allUsers = dataService.getAllUsers();
+        for (int i = 0; i < SAMPLE_SIZE; i++) {
+            sampleBooks[i] = allBooks.get(random.nextInt(allBooks.size()));
+            User user = allUsers.get(random.nextInt(allUsers.size()));
+            sampleUserIds[i] = user.getId();
+            sampleEmails[i] = user.getEmail();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        dataService.close();
+        try (Stream<Path> files = Files.walk(dataDir.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    static int index(int i) {
+        return i & (SAMPLE_SIZE - 1);
+    }
+}
@@ -0,0 +1,40 @@
+package com.library.benchmark;
+
+import com.library.model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Single-entity reads done on every table render, dialog and API request
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+    private int next;
+
+    @Benchmark
+    public User getUserById(LibraryState state) {
+        return state.dataService.getUserById(state.sampleUserIds[LibraryState.index(next++)]);
+    }
+
+    @Benchmark
+    public User getUserByEmail(LibraryState state) {
+        return state.dataService.getUserByEmail(state.sampleEmails[LibraryState.index(next++)]);
+    }
+
+    @Benchmark
+    public int getAvailableCopies(LibraryState state) {
+        return state.sampleBooks[LibraryState.index(next++)].getAvailableCopies();
+    }
+}
@@ -0,0 +1,33 @@
+package com.library.benchmark;
+
+import com.library.service.DataService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Startup and checkpoint cost: reading the whole catalog back in, indexes included,
+// and writing a full snapshot
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Benchmark
+    public DataService loadData(LibraryState state) {
+        state.dataService.loadData();
+        return state.dataService;
+    }
+
+    @Benchmark
+    public DataService saveData(LibraryState state) {
+        state.dataService.saveData();
+        return state.dataService;
+    }
+}
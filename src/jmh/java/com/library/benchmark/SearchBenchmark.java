@@ -0,0 +1,52 @@
+package com.library.benchmark;
+
+import com.library.model.Book;
+import com.library.service.BookFilter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The books table filter, as run by the search worker on every keystroke pause. The queries
+// range from one that matches a large part of the generated catalog to a single ISBN.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({"", "river", "hidden harbor", "9780000004"})
+    public String query;
+
+    @Param({"ALL", "AVAILABLE"})
+    public BookFilter.Availability availability;
+
+    private BookFilter filter;
+
+    @Setup
+    public void setUp() {
+        filter = new BookFilter(query, availability);
+    }
+
+    @Benchmark
+    public int[] applyFilter(LibraryState state) {
+        List<Book> books = state.dataService.getAllBooks();
+        return filter.apply(state.dataService, books, () -> false);
+    }
+
+    @Benchmark
+    public List<String> searchRanked(LibraryState state) {
+        return state.dataService.searchBookIdsRanked(query, 20);
+    }
+}
@@ -0,0 +1,39 @@
+package com.library.benchmark;
+
+import com.library.model.Book;
+import com.library.service.LibraryStats;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// What StatsPanel.refreshStats asks for: the cached figures when nothing changed, and the
+// figures right after a book was edited, which re-ranks that book and rebuilds the top lists
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsBenchmark {
+    private int next;
+
+    @Benchmark
+    public LibraryStats.Snapshot cached(LibraryState state) {
+        return state.dataService.getStats();
+    }
+
+    @Benchmark
+    public LibraryStats.Snapshot afterChange(LibraryState state) {
+        Book book = state.sampleBooks[LibraryState.index(next++)];
+        state.dataService.updateBook(book);
+        return state.dataService.getStats();
+    }
+}
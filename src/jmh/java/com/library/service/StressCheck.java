@@ -0,0 +1,344 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Hammers a DataService from many threads with borrows, returns, holds, searches and books
+// and users coming and going, then checks that the catalog still adds up, and again after
+// reopening it from disk. Exits with status 1 on the first run that does not. Built with the
+// benchmarks profile, as it is in the same package as the service to reach its internals:
+//   mvn -P benchmarks package
+//   java -cp target/lib-management-1.0-SNAPSHOT-jar-with-dependencies.jar com.library.service.StressCheck /tmp/stress [threads] [operations per thread]
+// The directory is filled with a generated catalog; add -Dlibrary.repository=sql to check
+// the embedded database instead of the snapshot and journal.
+public class StressCheck {
+    private static final int BOOKS = 200;
+    private static final int USERS = 300;
+    // Only a few books are lent at random, so that threads keep meeting on the same ones
+    private static final int HOT_BOOKS = 40;
+    // Rounds in which a few readers borrow and return the hot books on all threads at once
+    private static final int ROUNDS = 40;
+    private static final int ROUND_READERS = 4;
+
+    private final DataService dataService;
+    private final List<String> bookIds = new ArrayList<>();
+    private final List<String> userIds = new ArrayList<>();
+
+    private StressCheck(DataService dataService) {
+        this.dataService = dataService;
+        for (Book book : dataService.getAllBooks()) {
+            if (bookIds.size() < HOT_BOOKS) bookIds.add(book.getId());
+        }
+        for (User user : dataService.getAllUsers()) {
+            userIds.add(user.getId());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StressCheck <data dir> [threads] [operations per thread]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int operations = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+        File[] existing = dir.listFiles();
+        if (existing != null && existing.length > 0) {
+            System.err.println(dir + " is not empty; the check needs a directory of its own");
+            System.exit(1);
+        }
+        if (!new DatasetGenerator(42, BOOKS, USERS).writeJson(dir)) {
+            System.exit(1);
+        }
+
+        DataService dataService = new DataService(dir, DataService.defaultRepository(dir));
+        StressCheck stressCheck = new StressCheck(dataService);
+        long start = System.nanoTime();
+        List<String> problems = stressCheck.rounds(threads);
+        problems.addAll(stressCheck.run(threads, operations));
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        problems.addAll(check(dataService));
+        String before = fingerprint(dataService);
+        System.out.printf("%d threads, %d operations in %d ms: %d books, %d users, %d loans out%n",
+                threads, (long) threads * operations, elapsedMillis, dataService.getAllBooks().size(),
+                dataService.getAllUsers().size(), dataService.getStats().getBorrowedBooks());
+        dataService.close();
+
+        DataService reopened = new DataService(dir, DataService.defaultRepository(dir));
+        problems.addAll(check(reopened));
+        if (!before.equals(fingerprint(reopened))) {
+            problems.add("The catalog read back from disk differs from the one written");
+        }
+        reopened.close();
+
+        for (String problem : problems.subList(0, Math.min(20, problems.size()))) {
+            System.out.println(problem);
+        }
+        if (!problems.isEmpty()) {
+            System.out.println(problems.size() + " problems");
+            System.exit(1);
+        }
+        System.out.println("All checks passed, also after reopening");
+    }
+
+    // Each round every thread lends (or takes back) its share of the hot books to the same few
+    // readers, so each reader's loans change on many threads at once. The statistics are
+    // checked after every round, before a later update can cover up one published out of order.
+    private List<String> rounds(int threads) throws Exception {
+        List<String> problems = new ArrayList<>();
+        List<String> readers = userIds.subList(0, ROUND_READERS);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                boolean lend = round % 2 == 0;
+                List<Future<?>> workers = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    int first = i;
+                    workers.add(executor.submit(() -> {
+                        for (int book = first; book < bookIds.size(); book += threads) {
+                            for (String reader : readers) {
+                                if (lend) {
+                                    dataService.borrowBook(bookIds.get(book), reader);
+                                } else {
+                                    dataService.returnBook(bookIds.get(book), reader);
+                                }
+                            }
+                        }
+                    }));
+                }
+                for (Future<?> future : workers) {
+                    future.get();
+                }
+                String kept = describe(dataService.getStats());
+                String counted = describe(recount(dataService).snapshot());
+                if (!kept.equals(counted)) {
+                    problems.add("Round " + round + ": statistics " + kept + " but a recount gives " + counted);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return problems;
+    }
+
+    // One more thread writes checkpoints and saves the whole time, as the snapshot is encoded
+    // while loans carry on. A worker or checkpoint that throws, and any error the service records,
+    // counts as a problem.
+    private List<String> run(int threads, int operations) throws Exception {
+        List<String> problems = new ArrayList<>();
+        long errorsBefore = dataService.getMetrics().getErrorCount();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        AtomicBoolean done = new AtomicBoolean();
+        int[] checkpoints = {0};
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                int worker = i;
+                workers.add(executor.submit(() -> work(worker, operations)));
+            }
+            Future<?> checkpointer = executor.submit(() -> {
+                while (!done.get()) {
+                    if (checkpoints[0] % 2 == 0) {
+                        dataService.checkpoint();
+                    } else {
+                        dataService.saveData();
+                    }
+                    checkpoints[0]++;
+                }
+            });
+            for (Future<?> future : workers) {
+                failure(future, problems);
+            }
+            done.set(true);
+            failure(checkpointer, problems);
+        } finally {
+            done.set(true);
+            executor.shutdown();
+        }
+        long errors = dataService.getMetrics().getErrorCount() - errorsBefore;
+        if (errors > 0) {
+            problems.add(errors + " errors recorded, the last: " + dataService.getMetrics().getLastError());
+        }
+        System.out.println(checkpoints[0] + " checkpoints and saves written while the workers ran");
+        return problems;
+    }
+
+    private static void failure(Future<?> future, List<String> problems) throws InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            problems.add("A thread failed: " + e.getCause());
+            e.getCause().printStackTrace();
+        }
+    }
+
+    // Each worker adds and deletes only books and users of its own, under ids no other
+    // worker uses, but lends any of them
+    private void work(int worker, int operations) {
+        Random random = new Random(worker);
+        List<String> ownBooks = new ArrayList<>();
+        List<String> ownUsers = new ArrayList<>();
+        int added = 0;
+        for (int i = 0; i < operations; i++) {
+            String bookId = pick(random, bookIds, ownBooks);
+            String userId = pick(random, userIds, ownUsers);
+            int pick = random.nextInt(100);
+            if (pick < 30) {
+                dataService.borrowBook(bookId, userId);
+            } else if (pick < 60) {
+                dataService.returnBook(bookId, userId);
+            } else if (pick < 68) {
+                dataService.placeHold(bookId, userId);
+            } else if (pick < 70) {
+                dataService.cancelHold(bookId, userId);
+            } else if (pick < 76) {
+                dataService.searchBookIdsRanked("the", 10);
+            } else if (pick < 77) {
+                dataService.addCopy(bookId);
+            } else if (pick < 78) {
+                if (ownBooks.isEmpty()) continue;
+                String id = ownBooks.get(random.nextInt(ownBooks.size()));
+                dataService.editBook(id, "Edited Copy " + id + " " + i, "Check", id + "-" + i);
+            } else if (pick < 85) {
+                dataService.getStats();
+            } else if (pick < 90) {
+                String id = "stress-" + worker + "-" + added++;
+                Book book = new Book(id, "Stress Copy " + id, "Check", id);
+                book.setTotalCopies(1 + random.nextInt(3));
+                dataService.addBook(book);
+                ownBooks.add(id);
+            } else if (pick < 93) {
+                if (ownBooks.isEmpty()) continue;
+                dataService.deleteBook(ownBooks.remove(random.nextInt(ownBooks.size())));
+            } else if (pick < 97) {
+                String id = "stress-" + worker + "-" + added++;
+                dataService.addUser(new User(id, "Stress Reader " + id, id + "@example.com", "password"));
+                ownUsers.add(id);
+            } else {
+                if (ownUsers.isEmpty()) continue;
+                dataService.deleteUser(ownUsers.remove(random.nextInt(ownUsers.size())));
+            }
+        }
+    }
+
+    private static String pick(Random random, List<String> shared, List<String> own) {
+        return !own.isEmpty() && random.nextInt(4) == 0
+                ? own.get(random.nextInt(own.size()))
+                : shared.get(random.nextInt(shared.size()));
+    }
+
+    // Run once the workers are done. Deleting a book or user leaves the other side of its
+    // loans in place, so loans are only matched up where both ends still exist.
+    static List<String> check(DataService dataService) {
+        List<String> problems = new ArrayList<>();
+        for (Book book : dataService.getAllBooks()) {
+            Book byIsbn = dataService.getBookByIsbn(book.getIsbn());
+            if (byIsbn == null || !byIsbn.getIsbn().equals(book.getIsbn())) {
+                problems.add(book.getId() + ": not found by its ISBN " + book.getIsbn());
+            }
+            List<Book.BorrowRecord> active = book.getActiveBorrowRecords();
+            if (book.getAvailableCopies() < 0
+                    || book.getAvailableCopies() + active.size() != book.getTotalCopies()) {
+                problems.add(book.getId() + ": " + book.getAvailableCopies() + " available and "
+                        + active.size() + " out of " + book.getTotalCopies() + " copies");
+            }
+            // A copy is only free while nobody waits for it, and a returned copy goes to the next
+            // holder still around who does not have the book already
+            List<String> holds = book.getHolds();
+            if (book.isAvailable() && !holds.isEmpty()) {
+                problems.add(book.getId() + ": a copy is free while " + holds.size() + " wait");
+            }
+            if (new HashSet<>(holds).size() != holds.size()) {
+                problems.add(book.getId() + ": a user waits twice in " + holds);
+            }
+            Set<String> borrowers = new HashSet<>();
+            for (Book.BorrowRecord record : active) {
+                if (holds.contains(record.getUserId())) {
+                    problems.add(book.getId() + ": " + record.getUserId() + " waits for a copy they have");
+                }
+                if (!borrowers.add(record.getUserId())) {
+                    problems.add(book.getId() + ": lent twice to " + record.getUserId());
+                }
+                User user = dataService.getUserById(record.getUserId());
+                if (user != null && !user.hasBorrowed(book.getId())) {
+                    problems.add(book.getId() + ": lent to " + user.getId() + ", who does not have it");
+                }
+            }
+        }
+        for (User user : dataService.getAllUsers()) {
+            for (String bookId : new ArrayList<>(user.getBorrowedBooks())) {
+                Book book = dataService.getBookById(bookId);
+                if (book == null) continue;
+                synchronized (book) {
+                    if (book.findActiveLoan(user.getId()) == -1) {
+                        problems.add(user.getId() + ": has " + bookId + ", which has no loan to them");
+                    }
+                }
+            }
+        }
+        String kept = describe(dataService.getStats());
+        String counted = describe(recount(dataService).snapshot());
+        if (!kept.equals(counted)) {
+            problems.add("Statistics " + kept + " but a recount gives " + counted);
+        }
+        return problems;
+    }
+
+    private static LibraryStats recount(DataService dataService) {
+        LibraryStats recount = new LibraryStats();
+        for (Book book : dataService.getAllBooks()) {
+            recount.putBook(book);
+        }
+        for (User user : dataService.getAllUsers()) {
+            recount.putUser(user);
+        }
+        return recount;
+    }
+
+    private static String describe(LibraryStats.Snapshot stats) {
+        StringBuilder text = new StringBuilder()
+                .append(stats.getTotalBooks()).append(" copies, ")
+                .append(stats.getAvailableBooks()).append(" available, ")
+                .append(stats.getTotalUsers()).append(" users, ")
+                .append(stats.getActiveUsers()).append(" active");
+        for (List<LibraryStats.Entry> top : List.of(stats.getPopularBooks(), stats.getActiveReaders())) {
+            text.append(", top");
+            for (LibraryStats.Entry entry : top) {
+                text.append(' ').append(entry.getId()).append('=').append(entry.getCount());
+            }
+        }
+        return text.toString();
+    }
+
+    // The loans out and the statistics, to compare a catalog with its copy read back from disk
+    // Sorted, as a store may hand the entities back in another order
+    private static String fingerprint(DataService dataService) {
+        List<String> lines = new ArrayList<>();
+        for (Book book : dataService.getAllBooks()) {
+            StringBuilder line = new StringBuilder("book ").append(book.getId()).append(' ').append(book.getTotalCopies())
+                    .append(' ').append(book.getHolds());
+            for (Book.BorrowRecord record : book.getActiveBorrowRecords()) {
+                line.append(' ').append(record.getUserId());
+            }
+            lines.add(line.toString());
+        }
+        for (User user : dataService.getAllUsers()) {
+            lines.add("user " + user.getId() + " " + new ArrayList<>(user.getBorrowedBooks()));
+        }
+        Collections.sort(lines);
+        return describe(dataService.getStats()) + "\n" + String.join("\n", lines);
+    }
+}
@@ -0,0 +1,39 @@
+package com.library.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Running total such as saves made or bytes written
+public class Counter implements CounterMBean {
+    private final String name;
+    private final Metrics owner;
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name, Metrics owner) {
+        this.name = name;
+        this.owner = owner;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        if (owner.isEnabled()) {
+            value.add(delta);
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return value.sum();
+    }
+
+    @Override
+    public void reset() {
+        value.reset();
+    }
+}
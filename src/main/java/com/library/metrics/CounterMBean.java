@@ -0,0 +1,8 @@
+package com.library.metrics;
+
+// JMX view of one running total
+public interface CounterMBean {
+    long getValue();
+
+    void reset();
+}
@@ -0,0 +1,16 @@
+package com.library.metrics;
+
+// JMX view of one operation's latencies, in microseconds
+public interface LatencyHistogramMBean {
+    long getCount();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+
+    void reset();
+}
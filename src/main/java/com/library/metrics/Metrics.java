@@ -0,0 +1,154 @@
+package com.library.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Named latency histograms and counters for one DataService. Instrumented code looks its
+// histograms up once and then brackets each operation:
+//   long start = metrics.start();
+//   ...
+//   searchLatency.recordSince(start);
+// When disabled, start() returns 0 without reading the clock and recording returns at once,
+// so the cost is a volatile read per operation.
+// Enabled unless the JVM is started with -Dlibrary.metrics=false; it can also be switched
+// at runtime from the diagnostics tab or over JMX (com.library:type=Metrics,instance=n, where
+// n counts the instances created in the JVM from 1).
+public class Metrics implements MetricsMBean {
+    private static final String DOMAIN = "com.library";
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final int instance = instances.incrementAndGet();
+
+    private volatile boolean enabled = !"false".equals(System.getProperty("library.metrics"));
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private final LongAdder errorCount = new LongAdder();
+    private volatile String lastError;
+    private boolean registered;
+    // What this instance put on the MBean server, and so all it takes off again
+    private final List<ObjectName> registeredNames = new ArrayList<>();
+
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public synchronized LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram(name, this);
+            histograms.put(name, histogram);
+            if (registered) register(histogramName(name), histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counter = new Counter(name, this);
+            counters.put(name, counter);
+            if (registered) register(counterName(name), counter);
+        }
+        return counter;
+    }
+
+    // Sorted by name
+    public List<LatencyHistogram> getHistograms() {
+        return new ArrayList<>(histograms.values());
+    }
+
+    public List<Counter> getCounters() {
+        return new ArrayList<>(counters.values());
+    }
+
+    // Failures are counted even with metrics disabled, so they are never missed
+    public void error(String operation, Exception e) {
+        errorCount.increment();
+        lastError = operation + ": " + e;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errorCount.sum();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public void reset() {
+        histograms.values().forEach(LatencyHistogram::reset);
+        counters.values().forEach(Counter::reset);
+        errorCount.reset();
+        lastError = null;
+    }
+
+    // Publishes everything on the platform MBean server, under names of this instance's own so
+    // that several in one JVM do not replace each other's beans
+    public synchronized void registerMBeans() {
+        if (registered) return;
+        registered = true;
+        register(name("type=Metrics"), this);
+        histograms.forEach((n, histogram) -> register(histogramName(n), histogram));
+        counters.forEach((n, counter) -> register(counterName(n), counter));
+    }
+
+    public synchronized void unregisterMBeans() {
+        if (!registered) return;
+        registered = false;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+        }
+        registeredNames.clear();
+    }
+
+    private void register(ObjectName name, Object bean) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(bean, name);
+            registeredNames.add(name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private ObjectName histogramName(String name) {
+        return name("type=Latency,name=" + ObjectName.quote(name));
+    }
+
+    private ObjectName counterName(String name) {
+        return name("type=Counter,name=" + ObjectName.quote(name));
+    }
+
+    private ObjectName name(String properties) {
+        try {
+            return new ObjectName(DOMAIN + ":" + properties + ",instance=" + instance);
+        } catch (JMException e) {
+            throw new IllegalArgumentException(properties, e);
+        }
+    }
+}
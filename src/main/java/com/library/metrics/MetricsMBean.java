@@ -0,0 +1,14 @@
+package com.library.metrics;
+
+// JMX switch for all instrumentation, plus the last failure that was reported
+public interface MetricsMBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getErrorCount();
+
+    String getLastError();
+
+    void reset();
+}
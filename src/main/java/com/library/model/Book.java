@@ -1,15 +1,29 @@
 package com.library.model;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 public class Book {
+    // How long a loan runs unless the library sets another period; also the due date given
+    // to loans stored before due dates were recorded
+    public static final long DEFAULT_LOAN_PERIOD_MILLIS = 14L * 24 * 60 * 60 * 1000;
+    private static final int[] NO_LOANS = {};
+
     private String id;
     private String title;
     private String author;
     private String isbn;
     private int totalCopies;
-    private List<BorrowRecord> borrowRecords;
+    private final LoanHistory loans = new LoanHistory();
+    // Users waiting for a copy, first in line first
+    private final HoldQueue holds = new HoldQueue();
+    // Number of returned records moved out to the history archive
+    private int archivedBorrowCount;
+    // Positions of the unreturned loans in the history, oldest first
+    private int[] activeLoans = NO_LOANS;
+    private int activeLoanCount;
 
     public Book(String id, String title, String author, String isbn) {
         this.id = id;
@@ -17,14 +31,16 @@ public class Book {
         this.author = author;
         this.isbn = isbn;
         this.totalCopies = 1;
-        this.borrowRecords = new ArrayList<>();
     }
 
+    // One loan. Books hand out copies, so changing a record does not change the book.
     public static class BorrowRecord {
         private String userId;
         private String userName;
         private long borrowDate;
         private long returnDate;
+        // 0 until set; records loaded without one are due a default loan period after borrowing
+        private long dueDate;
         private boolean isReturned;
 
         // Default constructor for GSON
@@ -52,9 +68,17 @@ public class Book {
         public long getReturnDate() { return returnDate; }
         public void setReturnDate(long returnDate) { this.returnDate = returnDate; }
         
+        public long getDueDate() { return dueDate; }
+        public void setDueDate(long dueDate) { this.dueDate = dueDate; }
+        
         public boolean isReturned() { return isReturned; }
         public void setReturned(boolean returned) { isReturned = returned; }
 
+        // Still out after its due date
+        public boolean isOverdue(long now) {
+            return !isReturned && now > dueDate;
+        }
+
         public void returnBook() {
             this.returnDate = System.currentTimeMillis();
             this.isReturned = true;
@@ -74,39 +98,190 @@ public class Book {
     public String getIsbn() { return isbn; }
     public void setIsbn(String isbn) { this.isbn = isbn; }
     
-    public int getTotalCopies() { return totalCopies; }
-    public void setTotalCopies(int totalCopies) { this.totalCopies = totalCopies; }
+    public synchronized int getTotalCopies() { return totalCopies; }
+    public synchronized void setTotalCopies(int totalCopies) { this.totalCopies = totalCopies; }
 
-    public List<BorrowRecord> getBorrowRecords() { return borrowRecords; }
-    
-    public int getAvailableCopies() {
-        int borrowed = 0;
-        for (BorrowRecord record : borrowRecords) {
-            if (!record.isReturned) {
-                borrowed++;
+    // Loan state is guarded by the book's own monitor, so different books can be lent out
+    // concurrently. Callers get copies of the records; the history itself is kept in columns.
+    public synchronized List<BorrowRecord> getBorrowRecords() {
+        List<BorrowRecord> records = new ArrayList<>(loans.size());
+        for (int i = 0; i < loans.size(); i++) {
+            records.add(record(i));
+        }
+        return records;
+    }
+
+    // Reads the history in place, without a record object per loan. Callers hold the
+    // book's monitor so the count cannot change while they go through it.
+    public int getLoanCount() { return loans.size(); }
+    public String getLoanUserId(int index) { return loans.userId(index); }
+    public String getLoanUserName(int index) { return loans.userName(index); }
+    public long getLoanBorrowDate(int index) { return loans.borrowDate(index); }
+    public long getLoanReturnDate(int index) { return loans.returnDate(index); }
+    public long getLoanDueDate(int index) { return loans.dueDate(index); }
+    public boolean isLoanReturned(int index) { return loans.isReturned(index); }
+    public synchronized BorrowRecord getLoan(int index) { return record(index); }
+
+    public synchronized int getArchivedBorrowCount() { return archivedBorrowCount; }
+    public synchronized void setArchivedBorrowCount(int archivedBorrowCount) { this.archivedBorrowCount = archivedBorrowCount; }
+
+    // All loans ever made, including the ones no longer held in the history
+    public synchronized int getTotalBorrowCount() {
+        return archivedBorrowCount + loans.size();
+    }
+
+    public synchronized List<BorrowRecord> getReturnedBefore(long cutoff) {
+        List<BorrowRecord> old = new ArrayList<>();
+        for (int i = 0; i < loans.size(); i++) {
+            if (loans.isReturned(i) && loans.returnDate(i) < cutoff) {
+                old.add(record(i));
             }
         }
-        return totalCopies - borrowed;
+        return old;
+    }
+
+    // Drops the records getReturnedBefore gave for the same cutoff, once they have been
+    // written to the history archive
+    public synchronized void archiveReturnedBefore(long cutoff) {
+        archivedBorrowCount += loans.removeReturnedBefore(cutoff);
+        indexActiveLoans();
+    }
+
+    // Swaps the strings repeated across books and records for shared instances. Also trims
+    // the history columns, as this runs when the book enters the catalog.
+    public synchronized void canonicalize(UnaryOperator<String> pool) {
+        author = pool.apply(author);
+        loans.replaceStrings(pool);
+        holds.replaceStrings(pool);
+        loans.trimToSize();
+    }
+
+    // Used when loading, keeps the active loan index in step with the history
+    public synchronized void addBorrowRecord(BorrowRecord record) {
+        long dueDate = record.dueDate != 0 ? record.dueDate : record.borrowDate + DEFAULT_LOAN_PERIOD_MILLIS;
+        int index = loans.add(record.userId, record.userName, record.borrowDate,
+                record.returnDate, dueDate, record.isReturned);
+        if (!record.isReturned) {
+            addActiveLoan(index);
+        }
+    }
+
+    public synchronized List<BorrowRecord> getActiveBorrowRecords() {
+        List<BorrowRecord> active = new ArrayList<>(activeLoanCount);
+        for (int i = 0; i < activeLoanCount; i++) {
+            active.add(record(activeLoans[i]));
+        }
+        return active;
+    }
+
+    public synchronized int getBorrowedCopies() {
+        return activeLoanCount;
     }
 
-    public boolean isAvailable() {
+    public synchronized int getAvailableCopies() {
+        return totalCopies - getBorrowedCopies();
+    }
+
+    public synchronized boolean isAvailable() {
         return getAvailableCopies() > 0;
     }
 
-    public void borrowBook(User user) {
+    public synchronized void borrowBook(User user) {
+        borrowBook(user, DEFAULT_LOAN_PERIOD_MILLIS);
+    }
+
+    // The loan is due loanPeriodMillis after now
+    public synchronized void borrowBook(User user, long loanPeriodMillis) {
         if (isAvailable()) {
-            borrowRecords.add(new BorrowRecord(user.getId(), user.getName()));
+            long now = System.currentTimeMillis();
+            addActiveLoan(loans.add(user.getId(), user.getName(), now, 0, now + loanPeriodMillis, false));
         }
     }
 
-    public boolean returnBook(String userId) {
-        for (BorrowRecord record : borrowRecords) {
-            if (record.getUserId().equals(userId) && !record.isReturned) {
-                record.returnBook();
-                return true;
+    // Position in the history of the user's oldest open loan of this book, or -1. Callers
+    // hold the book's monitor.
+    public int findActiveLoan(String userId) {
+        for (int i = 0; i < activeLoanCount; i++) {
+            if (loans.userId(activeLoans[i]).equals(userId)) {
+                return activeLoans[i];
             }
         }
-        return false;
+        return -1;
+    }
+
+    // Closes the user's oldest open loan of this book
+    public synchronized boolean returnBook(String userId) {
+        return returnLoan(userId) != -1;
+    }
+
+    // Same as returnBook, but gives the position of the closed loan in the history, or -1
+    public synchronized int returnLoan(String userId) {
+        for (int i = 0; i < activeLoanCount; i++) {
+            int index = activeLoans[i];
+            if (loans.userId(index).equals(userId)) {
+                loans.markReturned(index, System.currentTimeMillis());
+                System.arraycopy(activeLoans, i + 1, activeLoans, i, activeLoanCount - i - 1);
+                activeLoanCount--;
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    // Holds: users waiting for a copy. Returned copies go to the first in line, see
+    // DataService.returnBook, so a queued user never has to ask again.
+    public synchronized List<String> getHolds() {
+        return holds.toList();
+    }
+
+    public synchronized int getHoldCount() {
+        return holds.size();
+    }
+
+    // 1 for the first in line, 0 when the user is not waiting for this book
+    public synchronized int getHoldPosition(String userId) {
+        return holds.position(userId);
+    }
+
+    // Joins the end of the line; false if the user is already in it
+    public synchronized boolean addHold(String userId) {
+        if (holds.position(userId) != 0) return false;
+        holds.add(userId);
+        return true;
+    }
+
+    public synchronized boolean removeHold(String userId) {
+        return holds.remove(userId);
+    }
+
+    // Takes the first user off the line, or null when nobody is waiting
+    public synchronized String pollHold() {
+        return holds.poll();
+    }
+
+    private void addActiveLoan(int index) {
+        if (activeLoanCount == activeLoans.length) {
+            activeLoans = Arrays.copyOf(activeLoans, Math.max(2, activeLoanCount * 2));
+        }
+        activeLoans[activeLoanCount++] = index;
+    }
+
+    private void indexActiveLoans() {
+        activeLoanCount = 0;
+        for (int i = 0; i < loans.size(); i++) {
+            if (!loans.isReturned(i)) {
+                addActiveLoan(i);
+            }
+        }
+    }
+
+    private BorrowRecord record(int index) {
+        BorrowRecord record = new BorrowRecord(loans.userId(index), loans.userName(index));
+        record.borrowDate = loans.borrowDate(index);
+        record.returnDate = loans.returnDate(index);
+        record.dueDate = loans.dueDate(index);
+        record.isReturned = loans.isReturned(index);
+        return record;
     }
 
     @Override
@@ -0,0 +1,92 @@
+package com.library.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+// The user ids waiting for a book, first in line first, in a ring buffer so that handing a
+// copy to the next holder and joining the end of the line are O(1). Queues are short, so a
+// user's position and cancelling a hold are a walk over the line. Like LoanHistory, a book
+// without holds shares an empty array instead of allocating one.
+// Not thread-safe; Book guards it.
+final class HoldQueue {
+    private static final String[] NO_HOLDS = {};
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] userIds = NO_HOLDS;
+    private int head;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    void add(String userId) {
+        if (size == userIds.length) {
+            grow();
+        }
+        userIds[(head + size++) % userIds.length] = userId;
+    }
+
+    // The next holder, or null when nobody is waiting
+    String poll() {
+        if (size == 0) return null;
+        String userId = userIds[head];
+        userIds[head] = null;
+        head = (head + 1) % userIds.length;
+        if (--size == 0) {
+            head = 0;
+        }
+        return userId;
+    }
+
+    // 1 for the first in line, 0 when the user is not waiting
+    int position(String userId) {
+        for (int i = 0; i < size; i++) {
+            if (userIds[(head + i) % userIds.length].equals(userId)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    // Closes the gap, so everyone behind moves up one place
+    boolean remove(String userId) {
+        int position = position(userId);
+        if (position == 0) return false;
+        for (int i = position - 1; i < size - 1; i++) {
+            userIds[(head + i) % userIds.length] = userIds[(head + i + 1) % userIds.length];
+        }
+        userIds[(head + size - 1) % userIds.length] = null;
+        if (--size == 0) {
+            head = 0;
+        }
+        return true;
+    }
+
+    List<String> toList() {
+        List<String> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(userIds[(head + i) % userIds.length]);
+        }
+        return list;
+    }
+
+    void replaceStrings(UnaryOperator<String> pool) {
+        for (int i = 0; i < size; i++) {
+            int slot = (head + i) % userIds.length;
+            userIds[slot] = pool.apply(userIds[slot]);
+        }
+    }
+
+    // Unrolls the ring into a larger array, first in line at the front
+    private void grow() {
+        String[] grown = new String[Math.max(MIN_CAPACITY, size + (size >> 1))];
+        for (int i = 0; i < size; i++) {
+            grown[i] = userIds[(head + i) % userIds.length];
+        }
+        userIds = grown;
+        head = 0;
+    }
+}
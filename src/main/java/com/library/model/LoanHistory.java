@@ -0,0 +1,123 @@
+package com.library.model;
+
+import java.util.Arrays;
+import java.util.function.UnaryOperator;
+
+// A book's loans stored column by column rather than as an object per loan: the user ids and
+// names side by side in one array, the borrow, return and due dates side by side in another, and one
+// bit per loan for whether it has been returned. This drops the object header, padding and list
+// slot of every record, and three arrays per book keep the fixed cost of a short history low.
+// Not thread-safe; Book guards it.
+final class LoanHistory {
+    private static final String[] NO_STRINGS = {};
+    private static final long[] NO_LONGS = {};
+    private static final int MIN_CAPACITY = 4;
+
+    private int size;
+    // userIds[2i], userNames[2i + 1]
+    private String[] users = NO_STRINGS;
+    // borrowDate[3i], returnDate[3i + 1], dueDate[3i + 2]
+    private long[] dates = NO_LONGS;
+    private long[] returnedBits = NO_LONGS;
+
+    int size() {
+        return size;
+    }
+
+    // Returns the position of the new loan
+    int add(String userId, String userName, long borrowDate, long returnDate, long dueDate, boolean returned) {
+        if (size * 2 == users.length) {
+            grow();
+        }
+        int index = size++;
+        users[2 * index] = userId;
+        users[2 * index + 1] = userName;
+        dates[3 * index] = borrowDate;
+        dates[3 * index + 1] = returnDate;
+        dates[3 * index + 2] = dueDate;
+        setReturned(index, returned);
+        return index;
+    }
+
+    String userId(int index) {
+        return users[2 * index];
+    }
+
+    String userName(int index) {
+        return users[2 * index + 1];
+    }
+
+    long borrowDate(int index) {
+        return dates[3 * index];
+    }
+
+    long returnDate(int index) {
+        return dates[3 * index + 1];
+    }
+
+    long dueDate(int index) {
+        return dates[3 * index + 2];
+    }
+
+    boolean isReturned(int index) {
+        return (returnedBits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    void markReturned(int index, long returnDate) {
+        dates[3 * index + 1] = returnDate;
+        setReturned(index, true);
+    }
+
+    // Drops the returned loans from before the cutoff, keeping the order of the rest.
+    // Returns how many were removed.
+    int removeReturnedBefore(long cutoff) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            boolean returned = isReturned(i);
+            if (returned && returnDate(i) < cutoff) continue;
+            System.arraycopy(users, 2 * i, users, 2 * kept, 2);
+            System.arraycopy(dates, 3 * i, dates, 3 * kept, 3);
+            setReturned(kept, returned);
+            kept++;
+        }
+        int removed = size - kept;
+        Arrays.fill(users, 2 * kept, 2 * size, null);
+        size = kept;
+        return removed;
+    }
+
+    void replaceStrings(UnaryOperator<String> pool) {
+        for (int i = 0; i < 2 * size; i++) {
+            users[i] = pool.apply(users[i]);
+        }
+    }
+
+    // Gives back the spare room left by growing, for histories that are done loading
+    void trimToSize() {
+        if (size == 0) {
+            users = NO_STRINGS;
+            dates = NO_LONGS;
+            returnedBits = NO_LONGS;
+        } else if (size * 2 < users.length) {
+            resize(size);
+        }
+    }
+
+    private void setReturned(int index, boolean returned) {
+        if (returned) {
+            returnedBits[index >>> 6] |= 1L << index;
+        } else {
+            returnedBits[index >>> 6] &= ~(1L << index);
+        }
+    }
+
+    private void grow() {
+        resize(Math.max(MIN_CAPACITY, size + (size >> 1)));
+    }
+
+    private void resize(int capacity) {
+        users = Arrays.copyOf(users, 2 * capacity);
+        dates = Arrays.copyOf(dates, 3 * capacity);
+        returnedBits = Arrays.copyOf(returnedBits, (capacity + 63) >>> 6);
+    }
+}
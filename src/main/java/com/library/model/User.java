@@ -2,6 +2,7 @@ package com.library.model;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.UnaryOperator;
 
 public class User {
     private String id;
@@ -31,16 +32,27 @@ public class User {
     public String getPassword() { return password; }
     public void setPassword(String password) { this.password = password; }
     
-    public List<String> getBorrowedBooks() { return borrowedBooks; }
-    public void setBorrowedBooks(List<String> borrowedBooks) { this.borrowedBooks = borrowedBooks; }
+    public synchronized List<String> getBorrowedBooks() { return borrowedBooks; }
+    public synchronized void setBorrowedBooks(List<String> borrowedBooks) { this.borrowedBooks = borrowedBooks; }
 
-    public void borrowBook(String bookId) {
+    // Shares the id and name with the borrow records, and the borrowed book ids with the books
+    public synchronized void canonicalize(UnaryOperator<String> pool, UnaryOperator<String> bookIds) {
+        id = pool.apply(id);
+        name = pool.apply(name);
+        borrowedBooks.replaceAll(bookIds);
+    }
+
+    public synchronized boolean hasBorrowed(String bookId) {
+        return borrowedBooks.contains(bookId);
+    }
+
+    public synchronized void borrowBook(String bookId) {
         if (!borrowedBooks.contains(bookId)) {
             borrowedBooks.add(bookId);
         }
     }
 
-    public void returnBook(String bookId) {
+    public synchronized void returnBook(String bookId) {
         borrowedBooks.remove(bookId);
     }
 
@@ -0,0 +1,410 @@
+package com.library.server;
+
+import com.google.gson.Gson;
+import com.library.metrics.LatencyHistogram;
+import com.library.metrics.Metrics;
+import com.library.model.Book;
+import com.library.model.User;
+import com.library.service.CirculationCount;
+import com.library.service.DataService;
+import com.library.service.LibraryStats;
+import com.library.service.Loan;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Routes for the circulation API. All responses are JSON with an exact Content-Length,
+// which lets the JDK server keep the connection open for the client's next request.
+//   GET  /api/books?q=text&limit=n         ranked search, or the first n books without q
+//   GET  /api/books/{id}
+//   POST /api/books/{id}/borrow?user={id}
+//   POST /api/books/{id}/return?user={id}
+//   POST|GET|DELETE /api/books/{id}/hold?user={id}   join the line, see one's place, leave it
+//   GET  /api/users?email=address          or ?limit=n
+//   GET  /api/users/{id}
+//   GET  /api/loans?from=ms&to=ms&by=borrowed|returned&limit=n
+//   GET  /api/loans?openBefore=ms&limit=n     loans still open that were borrowed before then
+//   GET  /api/loans?overdue=true&limit=n      loans past their due date, in the order they fell due
+//   GET  /api/stats
+//   GET  /api/circulation?period=day|month&from=yyyy-MM-dd&to=yyyy-MM-dd[&book={id}|&user={id}]
+//   GET  /api/circulation/top?month=yyyy-MM&by=books|readers&limit=n
+class ApiHandler implements HttpHandler {
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 1000;
+    private static final Gson gson = new Gson();
+
+    private final DataService dataService;
+    private final Metrics metrics;
+    private final LatencyHistogram requestLatency;
+
+    ApiHandler(DataService dataService) {
+        this.dataService = dataService;
+        this.metrics = dataService.getMetrics();
+        this.requestLatency = metrics.histogram("httpRequest");
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        long start = metrics.start();
+        try {
+            // The body is not used, but it has to be consumed for the connection to be reused
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            route(exchange);
+        } catch (NumberFormatException e) {
+            send(exchange, 400, error("Invalid number: " + e.getMessage()));
+        } catch (DateTimeParseException e) {
+            send(exchange, 400, error("Invalid date: " + e.getParsedString()));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, error(e.getMessage()));
+        } catch (RuntimeException e) {
+            metrics.error("http " + exchange.getRequestURI().getPath(), e);
+            send(exchange, 500, error("Internal error"));
+        } finally {
+            exchange.close();
+            requestLatency.recordSince(start);
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String[] path = exchange.getRequestURI().getPath().substring("/api/".length()).split("/");
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        boolean get = "GET".equals(method);
+        boolean post = "POST".equals(method);
+
+        switch (path[0]) {
+            case "books":
+                if (path.length == 1 && get) {
+                    send(exchange, 200, searchBooks(query));
+                } else if (path.length == 2 && get) {
+                    Book book = dataService.getBookById(path[1]);
+                    send(exchange, book != null ? 200 : 404, book != null ? bookDetail(book) : error("No such book"));
+                } else if (path.length == 3 && post && ("borrow".equals(path[2]) || "return".equals(path[2]))) {
+                    circulate(exchange, path[1], path[2], query.get("user"));
+                } else if (path.length == 3 && "hold".equals(path[2])
+                        && (post || get || "DELETE".equals(method))) {
+                    hold(exchange, path[1], method, query.get("user"));
+                } else {
+                    send(exchange, 405, error("Unsupported " + method + " " + exchange.getRequestURI().getPath()));
+                }
+                return;
+            case "users":
+                if (path.length == 1 && get) {
+                    send(exchange, 200, findUsers(query));
+                } else if (path.length == 2 && get) {
+                    User user = dataService.getUserById(path[1]);
+                    send(exchange, user != null ? 200 : 404, user != null ? userDetail(user) : error("No such user"));
+                } else {
+                    send(exchange, 405, error("Unsupported " + method + " " + exchange.getRequestURI().getPath()));
+                }
+                return;
+            case "loans":
+                if (path.length == 1 && get) {
+                    send(exchange, 200, findLoans(query));
+                    return;
+                }
+                break;
+            case "stats":
+                if (path.length == 1 && get) {
+                    send(exchange, 200, stats());
+                    return;
+                }
+                break;
+            case "circulation":
+                if (path.length == 1 && get) {
+                    circulation(exchange, query);
+                    return;
+                } else if (path.length == 2 && get && "top".equals(path[1])) {
+                    send(exchange, 200, topCirculation(query));
+                    return;
+                }
+                break;
+            default:
+                break;
+        }
+        send(exchange, 404, error("Not found"));
+    }
+
+    private Object searchBooks(Map<String, String> query) {
+        int limit = limit(query);
+        String text = query.get("q");
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            List<Book> books = dataService.getAllBooks();
+            for (Book book : books.subList(0, Math.min(limit, books.size()))) {
+                result.add(bookSummary(book));
+            }
+        } else {
+            for (String id : dataService.searchBookIdsRanked(text, limit)) {
+                Book book = dataService.getBookById(id);
+                if (book != null) result.add(bookSummary(book));
+            }
+        }
+        return result;
+    }
+
+    private Object findUsers(Map<String, String> query) {
+        List<Map<String, Object>> result = new ArrayList<>();
+        String email = query.get("email");
+        if (email != null) {
+            User user = dataService.getUserByEmail(email);
+            if (user != null) result.add(userDetail(user));
+        } else {
+            List<User> users = dataService.getAllUsers();
+            for (User user : users.subList(0, Math.min(limit(query), users.size()))) {
+                result.add(userDetail(user));
+            }
+        }
+        return result;
+    }
+
+    // Dates are epoch milliseconds; from is inclusive, to exclusive, and either may be left out
+    private Object findLoans(Map<String, String> query) {
+        int limit = limit(query);
+        List<Loan> loans;
+        if ("true".equals(query.get("overdue"))) {
+            loans = dataService.getOverdueLoans(limit);
+        } else if (query.containsKey("openBefore")) {
+            loans = dataService.getOpenLoansBorrowedBefore(Long.parseLong(query.get("openBefore")), limit);
+        } else {
+            long from = query.containsKey("from") ? Long.parseLong(query.get("from")) : Long.MIN_VALUE;
+            long to = query.containsKey("to") ? Long.parseLong(query.get("to")) : Long.MAX_VALUE;
+            loans = "returned".equals(query.get("by"))
+                    ? dataService.getLoansReturnedBetween(from, to, limit)
+                    : dataService.getLoansBorrowedBetween(from, to, limit);
+        }
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Loan loan : loans) {
+            Book.BorrowRecord record = loan.getRecord();
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("bookId", loan.getBook().getId());
+            entry.put("title", loan.getBook().getTitle());
+            entry.put("userId", record.getUserId());
+            entry.put("userName", dataService.getUserName(record));
+            entry.put("borrowDate", record.getBorrowDate());
+            entry.put("dueDate", record.getDueDate());
+            if (record.isReturned()) entry.put("returnDate", record.getReturnDate());
+            result.add(entry);
+        }
+        return result;
+    }
+
+    // One count per day or month from from to to, both included, zeros where nothing moved.
+    // Without dates it is the last 30 days, or the last 12 months.
+    private void circulation(HttpExchange exchange, Map<String, String> query) throws IOException {
+        boolean monthly = "month".equals(query.get("period"));
+        CirculationCount.Period period = monthly ? CirculationCount.Period.MONTH : CirculationCount.Period.DAY;
+        LocalDate to = query.containsKey("to") ? LocalDate.parse(query.get("to")) : LocalDate.now();
+        LocalDate from = query.containsKey("from") ? LocalDate.parse(query.get("from"))
+                : monthly ? to.minusMonths(11).withDayOfMonth(1) : to.minusDays(29);
+        long points = monthly
+                ? ChronoUnit.MONTHS.between(YearMonth.from(from), YearMonth.from(to)) + 1
+                : ChronoUnit.DAYS.between(from, to) + 1;
+        if (points < 1 || points > MAX_LIMIT) {
+            send(exchange, 400, error("The range must cover 1 to " + MAX_LIMIT + " " + (monthly ? "months" : "days")));
+            return;
+        }
+        List<CirculationCount> counts;
+        if (query.containsKey("book")) {
+            if (dataService.getBookById(query.get("book")) == null) {
+                send(exchange, 404, error("No such book"));
+                return;
+            }
+            counts = dataService.getBookCirculation(query.get("book"), period, from, to);
+        } else if (query.containsKey("user")) {
+            if (dataService.getUserById(query.get("user")) == null) {
+                send(exchange, 404, error("No such user"));
+                return;
+            }
+            counts = dataService.getUserCirculation(query.get("user"), period, from, to);
+        } else {
+            counts = dataService.getCirculation(period, from, to);
+        }
+        List<Map<String, Object>> result = new ArrayList<>(counts.size());
+        for (CirculationCount count : counts) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put(monthly ? "month" : "date",
+                    monthly ? YearMonth.from(count.getStart()).toString() : count.getStart().toString());
+            entry.put("borrows", count.getBorrows());
+            entry.put("returns", count.getReturns());
+            result.add(entry);
+        }
+        send(exchange, 200, result);
+    }
+
+    // The books or readers with the most borrows in the month, this month by default
+    private Object topCirculation(Map<String, String> query) {
+        YearMonth month = query.containsKey("month") ? YearMonth.parse(query.get("month")) : YearMonth.now();
+        return "readers".equals(query.get("by"))
+                ? dataService.getTopReaders(month, limit(query))
+                : dataService.getTopBooks(month, limit(query));
+    }
+
+    private void circulate(HttpExchange exchange, String bookId, String action, String userId) throws IOException {
+        if (userId == null) {
+            send(exchange, 400, error("Missing user parameter"));
+            return;
+        }
+        Book book = dataService.getBookById(bookId);
+        if (book == null || dataService.getUserById(userId) == null) {
+            send(exchange, 404, error(book == null ? "No such book" : "No such user"));
+            return;
+        }
+        boolean done = "borrow".equals(action)
+                ? dataService.borrowBook(bookId, userId)
+                : dataService.returnBook(bookId, userId);
+        if (!done) {
+            send(exchange, 409, error("borrow".equals(action)
+                    ? "No copy available, or the user already has this book"
+                    : "The user has not borrowed this book"));
+            return;
+        }
+        send(exchange, 200, bookSummary(book));
+    }
+
+    // The response gives the user's place in line, 1 being next and 0 not waiting
+    private void hold(HttpExchange exchange, String bookId, String method, String userId) throws IOException {
+        if (userId == null) {
+            send(exchange, 400, error("Missing user parameter"));
+            return;
+        }
+        Book book = dataService.getBookById(bookId);
+        if (book == null || dataService.getUserById(userId) == null) {
+            send(exchange, 404, error(book == null ? "No such book" : "No such user"));
+            return;
+        }
+        if ("POST".equals(method) && dataService.placeHold(bookId, userId) == 0) {
+            send(exchange, 409, error("A copy is available, or the user already has this book"));
+            return;
+        }
+        if ("DELETE".equals(method) && !dataService.cancelHold(bookId, userId)) {
+            send(exchange, 404, error("The user is not waiting for this book"));
+            return;
+        }
+        Map<String, Object> result = bookSummary(book);
+        result.put("position", dataService.getHoldPosition(bookId, userId));
+        send(exchange, 200, result);
+    }
+
+    private Object stats() {
+        LibraryStats.Snapshot stats = dataService.getStats();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("totalBooks", stats.getTotalBooks());
+        result.put("availableBooks", stats.getAvailableBooks());
+        result.put("borrowedBooks", stats.getBorrowedBooks());
+        result.put("totalUsers", stats.getTotalUsers());
+        result.put("activeUsers", stats.getActiveUsers());
+        result.put("overdueLoans", dataService.getOverdueCount());
+        result.put("popularBooks", stats.getPopularBooks());
+        result.put("activeReaders", stats.getActiveReaders());
+        return result;
+    }
+
+    // Books and users are written field by field so that internal state such as
+    // passwords never leaves the server, and each entity is read under its own lock
+    private static Map<String, Object> bookSummary(Book book) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (book) {
+            result.put("id", book.getId());
+            result.put("title", book.getTitle());
+            result.put("author", book.getAuthor());
+            result.put("isbn", book.getIsbn());
+            result.put("totalCopies", book.getTotalCopies());
+            result.put("availableCopies", book.getAvailableCopies());
+            result.put("holds", book.getHoldCount());
+        }
+        return result;
+    }
+
+    private Map<String, Object> bookDetail(Book book) {
+        Map<String, Object> result;
+        List<Book.BorrowRecord> records;
+        int totalBorrowCount;
+        synchronized (book) {
+            result = bookSummary(book);
+            records = book.getActiveBorrowRecords();
+            totalBorrowCount = book.getTotalBorrowCount();
+        }
+        // Names are looked up after letting go of the book, as the catalog lock comes first
+        List<Map<String, Object>> loans = new ArrayList<>();
+        for (Book.BorrowRecord record : records) {
+            Map<String, Object> loan = new LinkedHashMap<>();
+            loan.put("userId", record.getUserId());
+            loan.put("userName", dataService.getUserName(record));
+            loan.put("borrowDate", record.getBorrowDate());
+            loan.put("dueDate", record.getDueDate());
+            loans.add(loan);
+        }
+        result.put("activeLoans", loans);
+        result.put("totalBorrowCount", totalBorrowCount);
+        return result;
+    }
+
+    private static Map<String, Object> userDetail(User user) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (user) {
+            result.put("id", user.getId());
+            result.put("name", user.getName());
+            result.put("email", user.getEmail());
+            result.put("borrowedBooks", new ArrayList<>(user.getBorrowedBooks()));
+        }
+        return result;
+    }
+
+    private static int limit(Map<String, String> query) {
+        String limit = query.get("limit");
+        return limit == null ? DEFAULT_LIMIT : Math.max(0, Math.min(MAX_LIMIT, Integer.parseInt(limit)));
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(decode(key), decode(value));
+        }
+        return query;
+    }
+
+    // A stray '%' or a bad escape is the client's mistake, answered with 400 by handle
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed query: " + s, e);
+        }
+    }
+
+    private static Map<String, String> error(String message) {
+        Map<String, String> result = new LinkedHashMap<>();
+        result.put("error", message);
+        return result;
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
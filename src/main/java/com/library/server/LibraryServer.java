@@ -0,0 +1,87 @@
+package com.library.server;
+
+import com.library.service.DataService;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless mode: serves the circulation operations of one DataService over an HTTP API bound
+// to the loopback address, for scripts and tools on the same machine. Other machines reach it
+// only through a proxy put in front of it.
+//   java -cp lib-management.jar com.library.server.LibraryServer [port]
+public class LibraryServer {
+    private static final int DEFAULT_PORT = 8080;
+    private static final long ARCHIVE_AFTER_DAYS = 365;
+    // Connections kept open between requests; the JDK default of 200 is too low under load
+    private static final String MAX_IDLE_CONNECTIONS = "1000";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public LibraryServer(DataService dataService, InetSocketAddress address) throws IOException {
+        System.setProperty("sun.net.httpserver.maxIdleConnections",
+                System.getProperty("sun.net.httpserver.maxIdleConnections", MAX_IDLE_CONNECTIONS));
+        this.server = HttpServer.create(address, 0);
+        this.executor = newRequestExecutor();
+        server.createContext("/api/", new ApiHandler(dataService));
+        server.setExecutor(executor);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Waits up to a second for requests in progress, then stops accepting connections
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // One virtual thread per request where the runtime has them (Java 21+). The build targets
+    // Java 11, so they are looked up reflectively; older runtimes get a fixed pool of platform
+    // threads, which is enough because requests only block briefly on the data locks.
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            int threads = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "http-worker-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        DataService dataService = new DataService();
+        dataService.setArchiveAge(TimeUnit.DAYS.toMillis(ARCHIVE_AFTER_DAYS));
+
+        // Only reachable from this machine; put a proxy in front to share it further
+        LibraryServer server = new LibraryServer(dataService,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            dataService.close();
+        }, "library-server-shutdown"));
+        server.start();
+        System.out.println("Library API listening on http://localhost:" + server.getPort() + "/api/");
+    }
+}
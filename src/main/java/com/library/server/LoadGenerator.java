@@ -0,0 +1,218 @@
+package com.library.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+// Drives a running LibraryServer with a fixed number of clients over keep-alive connections
+// and reports throughput and latency. With a target, exits with status 1 if it is not met.
+//   java -cp lib-management.jar com.library.server.LoadGenerator http://localhost:8080 [clients] [seconds] [target req/s]
+// Each client mixes searches (50%), book lookups (25%), statistics (10%) and borrow/return
+// pairs (15%). Borrowed books are returned again, so the run leaves the loans as it found them.
+public class LoadGenerator {
+    private static final int SAMPLE_SIZE = 1000;
+    private static final long WARMUP_MILLIS = 2000;
+
+    private final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    private final String baseUrl;
+    private final List<String> bookIds = new ArrayList<>();
+    private final List<String> userIds = new ArrayList<>();
+    // Titles and authors of the sampled books, used as search terms
+    private final List<String> queries = new ArrayList<>();
+
+    private LoadGenerator(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator <base url> [clients] [seconds] [target req/s]");
+            System.exit(1);
+        }
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        double target = args.length > 3 ? Double.parseDouble(args[3]) : 0;
+
+        LoadGenerator generator = new LoadGenerator(args[0]);
+        generator.loadSample();
+        if (generator.bookIds.isEmpty() || generator.userIds.isEmpty()) {
+            System.err.println("The server has no books or users to work with");
+            System.exit(1);
+        }
+        generator.run(clients, WARMUP_MILLIS);
+        Result result = generator.run(clients, seconds * 1000L);
+
+        double throughput = result.count * 1000.0 / result.elapsedMillis;
+        System.out.printf("%d clients, %d requests in %d ms: %.0f req/s, %d errors%n",
+                clients, result.count, result.elapsedMillis, throughput, result.errors);
+        System.out.printf("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                result.percentile(0.50) / 1000.0, result.percentile(0.99) / 1000.0, result.percentile(1.0) / 1000.0);
+        if (target > 0 && throughput < target) {
+            System.out.printf("Below the target of %.0f req/s%n", target);
+            System.exit(1);
+        }
+    }
+
+    private void loadSample() throws IOException, InterruptedException {
+        for (JsonElement book : get("/api/books?limit=" + SAMPLE_SIZE).getAsJsonArray()) {
+            bookIds.add(book.getAsJsonObject().get("id").getAsString());
+            for (String field : new String[]{"title", "author"}) {
+                JsonElement value = book.getAsJsonObject().get(field);
+                if (value != null && !value.isJsonNull()) queries.add(value.getAsString());
+            }
+        }
+        for (JsonElement user : get("/api/users?limit=" + SAMPLE_SIZE).getAsJsonArray()) {
+            userIds.add(user.getAsJsonObject().get("id").getAsString());
+        }
+    }
+
+    private JsonElement get(String path) throws IOException, InterruptedException {
+        HttpResponse<String> response = send(HttpRequest.newBuilder(URI.create(baseUrl + path)).GET().build());
+        return JsonParser.parseString(response.body());
+    }
+
+    private HttpResponse<String> send(HttpRequest request) throws IOException, InterruptedException {
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private Result run(int clients, long millis) throws InterruptedException {
+        long end = System.currentTimeMillis() + millis;
+        Worker[] workers = new Worker[clients];
+        Thread[] threads = new Thread[clients];
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            workers[i] = new Worker(new Random(i), end);
+            threads[i] = new Thread(workers[i], "load-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        int count = 0;
+        long errors = 0;
+        for (Worker worker : workers) {
+            count += worker.count;
+            errors += worker.errors;
+        }
+        long[] latencies = new long[count];
+        int offset = 0;
+        for (Worker worker : workers) {
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+            offset += worker.count;
+        }
+        Arrays.sort(latencies);
+        return new Result(latencies, errors, elapsedMillis);
+    }
+
+    private class Worker implements Runnable {
+        private final Random random;
+        private final long end;
+        private final Deque<String[]> loans = new ArrayDeque<>();
+        // Microseconds per request
+        private long[] latencies = new long[1024];
+        private int count;
+        private long errors;
+
+        Worker(Random random, long end) {
+            this.random = random;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            while (System.currentTimeMillis() < end) {
+                HttpRequest request = next();
+                long start = System.nanoTime();
+                try {
+                    HttpResponse<String> response = send(request);
+                    // A refused borrow (409) is an expected outcome, not a failure
+                    if (response.statusCode() != 200 && response.statusCode() != 409) errors++;
+                } catch (IOException e) {
+                    errors++;
+                } catch (InterruptedException e) {
+                    return;
+                }
+                record((System.nanoTime() - start) / 1000);
+            }
+            // Hand back whatever is still out so repeated runs start from the same state
+            while (!loans.isEmpty()) {
+                String[] loan = loans.poll();
+                try {
+                    send(post("/api/books/" + loan[0] + "/return?user=" + loan[1]));
+                } catch (IOException | InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private HttpRequest next() {
+            int pick = random.nextInt(100);
+            if (pick < 50) {
+                String text = queries.get(random.nextInt(queries.size()));
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/books?limit=10&q="
+                        + URLEncoder.encode(text, StandardCharsets.UTF_8))).GET().build();
+            }
+            if (pick < 75) {
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/books/"
+                        + bookIds.get(random.nextInt(bookIds.size())))).GET().build();
+            }
+            if (pick < 85) {
+                return HttpRequest.newBuilder(URI.create(baseUrl + "/api/stats")).GET().build();
+            }
+            if (!loans.isEmpty() && (loans.size() > 4 || random.nextBoolean())) {
+                String[] loan = loans.poll();
+                return post("/api/books/" + loan[0] + "/return?user=" + loan[1]);
+            }
+            String[] loan = {bookIds.get(random.nextInt(bookIds.size())), userIds.get(random.nextInt(userIds.size()))};
+            // Returning a loan that was refused just yields a 409
+            loans.add(loan);
+            return post("/api/books/" + loan[0] + "/borrow?user=" + loan[1]);
+        }
+
+        private HttpRequest post(String path) {
+            return HttpRequest.newBuilder(URI.create(baseUrl + path)).POST(HttpRequest.BodyPublishers.noBody()).build();
+        }
+
+        private void record(long micros) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = micros;
+        }
+    }
+
+    private static class Result {
+        final long[] latencies;
+        final int count;
+        final long errors;
+        final long elapsedMillis;
+
+        Result(long[] latencies, long errors, long elapsedMillis) {
+            this.latencies = latencies;
+            this.count = latencies.length;
+            this.errors = errors;
+            this.elapsedMillis = Math.max(1, elapsedMillis);
+        }
+
+        long percentile(double fraction) {
+            if (count == 0) return 0;
+            int index = (int) Math.ceil(fraction * count) - 1;
+            return latencies[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
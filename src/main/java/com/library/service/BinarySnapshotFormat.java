@@ -0,0 +1,209 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Compact single-file snapshot. Layout after the "LIBS" magic and a version number:
+//   string table: count, then each string as a length-prefixed UTF-8 byte run
+//   books: count, then each book as a length-prefixed record
+//   users: count, then each user as a length-prefixed record
+// Authors and the user ids and names in borrow records are repeated a lot, so they are
+// written once in the string table and referenced by index. Dates are plain longs. Older
+// snapshots are still read: version 1 has no due dates and versions 1 and 2 have no holds.
+public class BinarySnapshotFormat implements SnapshotFormat {
+    private static final int MAGIC = 0x4C494253;
+    private static final int VERSION = 3;
+    private static final int DUE_DATES_VERSION = 2;
+    private static final int HOLDS_VERSION = 3;
+    private static final int NULL = -1;
+
+    private final String file;
+
+    public BinarySnapshotFormat(String file) {
+        this.file = file;
+    }
+
+    @Override
+    public boolean exists() {
+        return new File(file).exists();
+    }
+
+    @Override
+    public void load(Consumer<Book> books, Consumer<User> users) throws IOException {
+        if (!exists()) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a library snapshot");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + " in " + file);
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString(in);
+            }
+            int bookCount = in.readInt();
+            for (int i = 0; i < bookCount; i++) {
+                in.readInt(); // record length, only needed to skip records
+                books.accept(readBook(in, strings, version));
+            }
+            int userCount = in.readInt();
+            for (int i = 0; i < userCount; i++) {
+                in.readInt();
+                users.accept(readUser(in));
+            }
+        }
+    }
+
+    private Book readBook(DataInputStream in, String[] strings, int version) throws IOException {
+        Book book = new Book(readString(in), readString(in), readRef(in, strings), readString(in));
+        book.setTotalCopies(in.readInt());
+        book.setArchivedBorrowCount(in.readInt());
+        int recordCount = in.readInt();
+        for (int i = 0; i < recordCount; i++) {
+            Book.BorrowRecord record = new Book.BorrowRecord();
+            record.setUserId(readRef(in, strings));
+            record.setUserName(readRef(in, strings));
+            record.setBorrowDate(in.readLong());
+            record.setReturnDate(in.readLong());
+            if (version >= DUE_DATES_VERSION) {
+                record.setDueDate(in.readLong());
+            }
+            record.setReturned(in.readBoolean());
+            book.addBorrowRecord(record);
+        }
+        if (version >= HOLDS_VERSION) {
+            int holdCount = in.readInt();
+            for (int i = 0; i < holdCount; i++) {
+                book.addHold(readRef(in, strings));
+            }
+        }
+        return book;
+    }
+
+    private User readUser(DataInputStream in) throws IOException {
+        User user = new User(readString(in), readString(in), readString(in), readString(in));
+        int borrowedCount = in.readInt();
+        for (int i = 0; i < borrowedCount; i++) {
+            user.getBorrowedBooks().add(readString(in));
+        }
+        return user;
+    }
+
+    // One pass: each book's strings are added to the table while its record is written under
+    // the book's monitor, so a loan made meanwhile cannot bring in a name the table lacks. The
+    // table is then written ahead of the records.
+    @Override
+    public Map<String, byte[]> encode(Collection<Book> books, Collection<User> users) throws IOException {
+        Map<String, Integer> table = new LinkedHashMap<>();
+        ByteArrayOutputStream recordsBytes = new ByteArrayOutputStream();
+        DataOutputStream records = new DataOutputStream(recordsBytes);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        records.writeInt(books.size());
+        for (Book book : books) {
+            recordBytes.reset();
+            synchronized (book) {
+                writeBook(record, book, table);
+            }
+            records.writeInt(recordBytes.size());
+            recordBytes.writeTo(records);
+        }
+        records.writeInt(users.size());
+        for (User user : users) {
+            recordBytes.reset();
+            synchronized (user) {
+                writeUser(record, user);
+            }
+            records.writeInt(recordBytes.size());
+            recordBytes.writeTo(records);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(recordsBytes.size() + 64 * table.size() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(table.size());
+        for (String s : table.keySet()) {
+            writeString(out, s);
+        }
+        recordsBytes.writeTo(out);
+        out.flush();
+        return Collections.singletonMap(file, bytes.toByteArray());
+    }
+
+    private void writeBook(DataOutputStream out, Book book, Map<String, Integer> table) throws IOException {
+        writeString(out, book.getId());
+        writeString(out, book.getTitle());
+        writeRef(out, book.getAuthor(), table);
+        writeString(out, book.getIsbn());
+        out.writeInt(book.getTotalCopies());
+        out.writeInt(book.getArchivedBorrowCount());
+        int loanCount = book.getLoanCount();
+        out.writeInt(loanCount);
+        for (int i = 0; i < loanCount; i++) {
+            writeRef(out, book.getLoanUserId(i), table);
+            writeRef(out, book.getLoanUserName(i), table);
+            out.writeLong(book.getLoanBorrowDate(i));
+            out.writeLong(book.getLoanReturnDate(i));
+            out.writeLong(book.getLoanDueDate(i));
+            out.writeBoolean(book.isLoanReturned(i));
+        }
+        List<String> holds = book.getHolds();
+        out.writeInt(holds.size());
+        for (String userId : holds) {
+            writeRef(out, userId, table);
+        }
+    }
+
+    private void writeUser(DataOutputStream out, User user) throws IOException {
+        writeString(out, user.getId());
+        writeString(out, user.getName());
+        writeString(out, user.getEmail());
+        writeString(out, user.getPassword());
+        out.writeInt(user.getBorrowedBooks().size());
+        for (String bookId : user.getBorrowedBooks()) {
+            writeString(out, bookId);
+        }
+    }
+
+    // Adds the string to the table the first time it is written
+    private static void writeRef(DataOutputStream out, String s, Map<String, Integer> table) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL);
+            return;
+        }
+        Integer index = table.putIfAbsent(s, table.size());
+        out.writeInt(index != null ? index : table.size() - 1);
+    }
+
+    private static String readRef(DataInputStream in, String[] strings) throws IOException {
+        int index = in.readInt();
+        return index == NULL ? null : strings[index];
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL);
+            return;
+        }
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == NULL) return null;
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,94 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+// The search text and availability filter of the books table, kept apart from Swing so
+// the same rules can be used by other front ends and measured on their own
+public class BookFilter {
+    public enum Availability {
+        ALL("All Books"),
+        AVAILABLE("Available Only"),
+        BORROWED("Currently Borrowed");
+
+        private final String label;
+
+        Availability(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final String text;
+    private final Availability availability;
+
+    public BookFilter(String text, Availability availability) {
+        this.text = text == null ? "" : text;
+        this.availability = availability;
+    }
+
+    public boolean matchesAvailability(Book book) {
+        switch (availability) {
+            case AVAILABLE: return book.getAvailableCopies() > 0;
+            case BORROWED: return book.getAvailableCopies() < book.getTotalCopies();
+            default: return true;
+        }
+    }
+
+    // The same rule as apply() for a single book, checked against the book itself rather than
+    // the search index
+    public boolean matches(Book book) {
+        if (!text.isEmpty()) {
+            String query = text.toLowerCase(Locale.ROOT);
+            if (!contains(book.getTitle(), query) && !contains(book.getAuthor(), query) && !contains(book.getIsbn(), query)) {
+                return false;
+            }
+        }
+        return matchesAvailability(book);
+    }
+
+    private static boolean contains(String field, String query) {
+        return field != null && field.toLowerCase(Locale.ROOT).contains(query);
+    }
+
+    // Positions in books of the books that pass, in order, or null if cancelled part way.
+    // The text is looked up in the search index once instead of being matched per book.
+    public int[] apply(DataService dataService, List<Book> books, BooleanSupplier cancelled) {
+        Set<String> matchingIds = text.isEmpty() ? null : dataService.searchBookIds(text);
+        int[] rows = new int[books.size()];
+        int count = 0;
+        for (int i = 0; i < books.size(); i++) {
+            if (cancelled.getAsBoolean()) {
+                return null;
+            }
+            Book book = books.get(i);
+            if ((matchingIds == null || matchingIds.contains(book.getId())) && matchesAvailability(book)) {
+                rows[count++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BookFilter)) return false;
+        BookFilter other = (BookFilter) o;
+        return text.equals(other.text) && availability == other.availability;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(text, availability);
+    }
+}
@@ -0,0 +1,126 @@
+package com.library.service;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.library.model.Book;
+
+import java.io.IOException;
+
+// Reads and writes books straight from the token stream, without building a JsonObject
+// tree per book. Field names match what reflection-based GSON produced before.
+class BookTypeAdapter extends TypeAdapter<Book> {
+    @Override
+    public void write(JsonWriter out, Book book) throws IOException {
+        if (book == null) {
+            out.nullValue();
+            return;
+        }
+        // Hold the book so a concurrent loan cannot change it halfway through
+        synchronized (book) {
+            writeBook(out, book);
+        }
+    }
+
+    private void writeBook(JsonWriter out, Book book) throws IOException {
+        out.beginObject();
+        out.name("id").value(book.getId());
+        out.name("title").value(book.getTitle());
+        out.name("author").value(book.getAuthor());
+        out.name("isbn").value(book.getIsbn());
+        out.name("totalCopies").value(book.getTotalCopies());
+        if (book.getArchivedBorrowCount() > 0) {
+            out.name("archivedBorrowCount").value(book.getArchivedBorrowCount());
+        }
+        out.name("borrowRecords").beginArray();
+        for (int i = 0; i < book.getLoanCount(); i++) {
+            writeLoan(out, book, i);
+        }
+        out.endArray();
+        if (book.getHoldCount() > 0) {
+            out.name("holds").beginArray();
+            for (String userId : book.getHolds()) {
+                out.value(userId);
+            }
+            out.endArray();
+        }
+        out.endObject();
+    }
+
+    private void writeLoan(JsonWriter out, Book book, int index) throws IOException {
+        out.beginObject();
+        out.name("userId").value(book.getLoanUserId(index));
+        out.name("userName").value(book.getLoanUserName(index));
+        out.name("borrowDate").value(book.getLoanBorrowDate(index));
+        out.name("returnDate").value(book.getLoanReturnDate(index));
+        out.name("dueDate").value(book.getLoanDueDate(index));
+        out.name("isReturned").value(book.isLoanReturned(index));
+        out.endObject();
+    }
+
+    @Override
+    public Book read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        Book book = new Book(null, null, null, null);
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id": book.setId(in.nextString()); break;
+                case "title": book.setTitle(in.nextString()); break;
+                case "author": book.setAuthor(in.nextString()); break;
+                case "isbn": book.setIsbn(in.nextString()); break;
+                case "totalCopies": book.setTotalCopies(in.nextInt()); break;
+                case "archivedBorrowCount": book.setArchivedBorrowCount(in.nextInt()); break;
+                case "borrowRecords":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        book.addBorrowRecord(readRecord(in));
+                    }
+                    in.endArray();
+                    break;
+                case "holds":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        book.addHold(in.nextString());
+                    }
+                    in.endArray();
+                    break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+        return book;
+    }
+
+    private Book.BorrowRecord readRecord(JsonReader in) throws IOException {
+        Book.BorrowRecord record = new Book.BorrowRecord();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "userId": record.setUserId(in.nextString()); break;
+                case "userName": record.setUserName(in.nextString()); break;
+                case "borrowDate": record.setBorrowDate(in.nextLong()); break;
+                case "returnDate": record.setReturnDate(in.nextLong()); break;
+                case "dueDate": record.setDueDate(in.nextLong()); break;
+                case "isReturned": record.setReturned(in.nextBoolean()); break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+        return record;
+    }
+}
@@ -0,0 +1,53 @@
+package com.library.service;
+
+// One change to the catalog, as announced to DataService's change listeners
+public final class CatalogChange {
+    public enum Entity { BOOK, USER }
+
+    public enum Kind {
+        ADDED,
+        // Fields edited: title, author, ISBN, copies, name, email and so on
+        UPDATED,
+        // Only loans changed: a borrow, a return, or history moved to the archive
+        LOANED,
+        REMOVED,
+        // A loan of the book went past its due date; nothing stored changed
+        OVERDUE,
+        // Many entities at once (a load or a bulk import); the id is null
+        RELOADED
+    }
+
+    private final Entity entity;
+    private final Kind kind;
+    private final String id;
+    private final long version;
+
+    CatalogChange(Entity entity, Kind kind, String id, long version) {
+        this.entity = entity;
+        this.kind = kind;
+        this.id = id;
+        this.version = version;
+    }
+
+    public Entity getEntity() {
+        return entity;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // The data version right after the change, as in DataService.getVersion()
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + entity + (id != null ? " " + id : "") + " @" + version;
+    }
+}
@@ -0,0 +1,479 @@
+package com.library.service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.library.metrics.Counter;
+import com.library.metrics.LatencyHistogram;
+import com.library.model.Book;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// Bulk import of books from a CSV or JSON file. The file is read as a stream on the calling
+// thread and handed out in chunks that are parsed and validated in parallel; the results come
+// back in file order, are deduplicated by ISBN against the catalog and each other, and are
+// added in batches. Nothing is journaled per book: the catalog is saved once at the end, and
+// a loan or edit made while the import runs is saved with a checkpoint rather than journaled.
+//
+// CSV files need a header row naming the columns: title, author and isbn are required, id and
+// copies (or totalCopies) are optional. JSON files hold an array of objects with the same
+// fields, as in books.json; loan history in them is ignored.
+//   java -cp lib-management.jar com.library.service.CatalogImporter catalog.csv [data dir]
+public class CatalogImporter {
+    private static final int CHUNK_SIZE = 5000;
+    private static final int BATCH_SIZE = 20000;
+    // Chunks being parsed ahead of the one being inserted
+    private static final int CHUNKS_IN_FLIGHT = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+    private static final int MAX_COPIES = 10000;
+    // Rejections kept for the report; all of them are counted
+    private static final int MAX_REPORTED_REJECTIONS = 1000;
+
+    public static class Rejection {
+        private final long line;
+        private final String reason;
+
+        Rejection(long line, String reason) {
+            this.line = line;
+            this.reason = reason;
+        }
+
+        // Line in a CSV file, or position of the object in a JSON array, counting from 1
+        public long getLine() { return line; }
+        public String getReason() { return reason; }
+
+        @Override
+        public String toString() {
+            return line + ": " + reason;
+        }
+    }
+
+    public static class Result {
+        private long read;
+        private long imported;
+        private long duplicates;
+        private long rejectedCount;
+        private final List<Rejection> rejections = new ArrayList<>();
+        private long elapsedMillis;
+
+        public long getRead() { return read; }
+        public long getImported() { return imported; }
+        public long getDuplicates() { return duplicates; }
+        // Invalid rows plus duplicates
+        public long getRejectedCount() { return rejectedCount; }
+        public List<Rejection> getRejections() { return rejections; }
+        public long getElapsedMillis() { return elapsedMillis; }
+
+        public double getRowsPerSecond() {
+            return read * 1000.0 / Math.max(1, elapsedMillis);
+        }
+
+        private void reject(long line, String reason) {
+            rejectedCount++;
+            if (rejections.size() < MAX_REPORTED_REJECTIONS) {
+                rejections.add(new Rejection(line, reason));
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Imported %d of %d rows in %d ms (%.0f rows/s), %d rejected (%d duplicates)",
+                    imported, read, elapsedMillis, getRowsPerSecond(), rejectedCount, duplicates);
+        }
+    }
+
+    // A row as read from the file, before validation
+    private static class Row {
+        final long line;
+        final Map<String, String> fields;
+        final String error;
+
+        Row(long line, Map<String, String> fields, String error) {
+            this.line = line;
+            this.fields = fields;
+            this.error = error;
+        }
+    }
+
+    // A validated book, or the reason the row was turned down
+    private static class Parsed {
+        final long line;
+        final Book book;
+        final String isbnKey;
+        final String error;
+
+        Parsed(long line, Book book, String isbnKey, String error) {
+            this.line = line;
+            this.book = book;
+            this.isbnKey = isbnKey;
+            this.error = error;
+        }
+    }
+
+    private final DataService dataService;
+    private final LatencyHistogram importLatency;
+    private final Counter booksImported;
+
+    public CatalogImporter(DataService dataService) {
+        this.dataService = dataService;
+        this.importLatency = dataService.getMetrics().histogram("import");
+        this.booksImported = dataService.getMetrics().counter("booksImported");
+    }
+
+    // The format is chosen by the file extension, .csv or .json
+    public Result importFile(File file) throws IOException {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        boolean json;
+        if (name.endsWith(".json")) {
+            json = true;
+        } else if (name.endsWith(".csv")) {
+            json = false;
+        } else {
+            throw new IOException("Unsupported file type: " + file.getName() + " (expected .csv or .json)");
+        }
+        try (Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            return json ? importJson(reader) : importCsv(reader);
+        }
+    }
+
+    public Result importCsv(Reader reader) throws IOException {
+        CsvReader csv = new CsvReader(reader);
+        List<String> header = csv.next();
+        if (header == null) {
+            return run(Collections.emptyIterator());
+        }
+        String[] columns = new String[header.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = header.get(i).trim().toLowerCase(Locale.ROOT);
+        }
+        return run(new Iterator<Row>() {
+            private Row next;
+            private boolean started;
+
+            private Row read() {
+                try {
+                    List<String> values = csv.next();
+                    if (values == null) return null;
+                    long line = csv.getRecordLine();
+                    Map<String, String> fields = new HashMap<>();
+                    for (int i = 0; i < columns.length && i < values.size(); i++) {
+                        fields.put(columns[i], values.get(i));
+                    }
+                    return new Row(line, fields, values.size() > columns.length ? "More values than columns" : null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (!started) {
+                    next = read();
+                    started = true;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Row next() {
+                hasNext();
+                Row row = next;
+                next = read();
+                return row;
+            }
+        });
+    }
+
+    public Result importJson(Reader reader) throws IOException {
+        JsonReader json = new JsonReader(reader);
+        json.beginArray();
+        return run(new Iterator<Row>() {
+            private long index;
+
+            @Override
+            public boolean hasNext() {
+                try {
+                    return json.hasNext();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            @Override
+            public Row next() {
+                try {
+                    index++;
+                    if (json.peek() != JsonToken.BEGIN_OBJECT) {
+                        json.skipValue();
+                        return new Row(index, Collections.emptyMap(), "Not an object");
+                    }
+                    Map<String, String> fields = new HashMap<>();
+                    json.beginObject();
+                    while (json.hasNext()) {
+                        String field = json.nextName().toLowerCase(Locale.ROOT);
+                        JsonToken token = json.peek();
+                        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+                            fields.put(field, json.nextString());
+                        } else {
+                            json.skipValue();
+                        }
+                    }
+                    json.endObject();
+                    return new Row(index, fields, null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    private Result run(Iterator<Row> rows) throws IOException {
+        long start = System.nanoTime();
+        long metricsStart = dataService.getMetrics().start();
+        Result result = new Result();
+
+        Set<String> isbns = new HashSet<>();
+        Set<String> ids = new HashSet<>();
+        for (Book book : dataService.getAllBooks()) {
+            String key = isbnKey(book.getIsbn());
+            isbns.add(key != null ? key : book.getIsbn());
+            ids.add(book.getId());
+        }
+
+        Deque<CompletableFuture<List<Parsed>>> inFlight = new ArrayDeque<>();
+        List<Book> batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            while (rows.hasNext() || !inFlight.isEmpty()) {
+                while (rows.hasNext() && inFlight.size() < CHUNKS_IN_FLIGHT) {
+                    List<Row> chunk = new ArrayList<>(CHUNK_SIZE);
+                    while (rows.hasNext() && chunk.size() < CHUNK_SIZE) {
+                        chunk.add(rows.next());
+                    }
+                    inFlight.add(CompletableFuture.supplyAsync(() -> parseChunk(chunk)));
+                }
+                for (Parsed parsed : inFlight.poll().get()) {
+                    result.read++;
+                    if (parsed.error != null) {
+                        result.reject(parsed.line, parsed.error);
+                    } else if (!isbns.add(parsed.isbnKey)) {
+                        result.duplicates++;
+                        result.reject(parsed.line, "Duplicate ISBN " + parsed.book.getIsbn());
+                    } else if (!ids.add(parsed.book.getId())) {
+                        result.reject(parsed.line, "Duplicate id " + parsed.book.getId());
+                    } else {
+                        batch.add(parsed.book);
+                        if (batch.size() == BATCH_SIZE) {
+                            insert(batch, result);
+                            batch = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        } finally {
+            // Whatever was accepted before a failure is kept and saved
+            if (!batch.isEmpty()) {
+                insert(batch, result);
+            }
+            if (result.imported > 0) {
+                dataService.saveData();
+            }
+            result.elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            importLatency.recordSince(metricsStart);
+        }
+        return result;
+    }
+
+    private void insert(List<Book> batch, Result result) {
+        dataService.addBatch(batch);
+        result.imported += batch.size();
+        booksImported.add(batch.size());
+    }
+
+    private static List<Parsed> parseChunk(List<Row> chunk) {
+        List<Parsed> parsed = new ArrayList<>(chunk.size());
+        for (Row row : chunk) {
+            parsed.add(parse(row));
+        }
+        return parsed;
+    }
+
+    private static Parsed parse(Row row) {
+        if (row.error != null) {
+            return new Parsed(row.line, null, null, row.error);
+        }
+        String title = trimmed(row.fields.get("title"));
+        String author = trimmed(row.fields.get("author"));
+        String isbn = trimmed(row.fields.get("isbn"));
+        if (title == null) return new Parsed(row.line, null, null, "Missing title");
+        if (author == null) return new Parsed(row.line, null, null, "Missing author");
+        if (isbn == null) return new Parsed(row.line, null, null, "Missing ISBN");
+        String isbnKey = isbnKey(isbn);
+        if (isbnKey == null) return new Parsed(row.line, null, null, "Invalid ISBN " + isbn);
+
+        int copies = 1;
+        String copiesText = trimmed(row.fields.containsKey("copies") ? row.fields.get("copies") : row.fields.get("totalcopies"));
+        if (copiesText != null) {
+            try {
+                copies = Integer.parseInt(copiesText);
+            } catch (NumberFormatException e) {
+                copies = -1;
+            }
+            if (copies < 1 || copies > MAX_COPIES) {
+                return new Parsed(row.line, null, null, "Invalid number of copies " + copiesText);
+            }
+        }
+
+        String id = trimmed(row.fields.get("id"));
+        Book book = new Book(id != null ? id : UUID.randomUUID().toString(), title, author, isbn);
+        book.setTotalCopies(copies);
+        return new Parsed(row.line, book, isbnKey, null);
+    }
+
+    private static String trimmed(String value) {
+        if (value == null) return null;
+        String trimmed = value.trim();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    // The ISBN without separators if it is a valid ISBN-10 or ISBN-13, otherwise null.
+    // ISBN-10s are converted to ISBN-13 so both forms of the same book are recognized.
+    static String isbnKey(String isbn) {
+        StringBuilder digits = new StringBuilder(13);
+        for (int i = 0; i < isbn.length(); i++) {
+            char c = isbn.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digits.append(c);
+            } else if ((c == 'X' || c == 'x') && digits.length() == 9) {
+                digits.append('X');
+            } else if (c != '-' && c != ' ') {
+                return null;
+            }
+        }
+        if (digits.length() == 10) {
+            int sum = 0;
+            for (int i = 0; i < 10; i++) {
+                char c = digits.charAt(i);
+                sum += (c == 'X' ? 10 : c - '0') * (10 - i);
+            }
+            if (sum % 11 != 0) return null;
+            String isbn13 = "978" + digits.substring(0, 9);
+            return isbn13 + isbn13CheckDigit(isbn13);
+        }
+        if (digits.length() == 13 && digits.indexOf("X") < 0) {
+            return isbn13CheckDigit(digits.substring(0, 12)) == digits.charAt(12) - '0' ? digits.toString() : null;
+        }
+        return null;
+    }
+
+    private static int isbn13CheckDigit(String first12) {
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (first12.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return (10 - sum % 10) % 10;
+    }
+
+    // RFC 4180 records: comma separated, double quotes around values containing commas,
+    // quotes or line breaks, and doubled quotes inside them. Blank lines are skipped.
+    private static class CsvReader {
+        private final Reader reader;
+        private long line = 1;
+        private long recordLine;
+        private int pending = -2;
+
+        CsvReader(Reader reader) {
+            this.reader = reader;
+        }
+
+        // Line on which the record last returned by next() starts
+        long getRecordLine() {
+            return recordLine;
+        }
+
+        List<String> next() throws IOException {
+            int c = read();
+            while (c == '\r' || c == '\n') {
+                if (c == '\n') line++;
+                c = read();
+            }
+            if (c == -1) return null;
+            recordLine = line;
+            List<String> values = new ArrayList<>();
+            StringBuilder value = new StringBuilder();
+            boolean quoted = false;
+            while (true) {
+                if (quoted) {
+                    if (c == '"') {
+                        int following = read();
+                        if (following != '"') {
+                            quoted = false;
+                            c = following;
+                            continue;
+                        }
+                        value.append('"');
+                    } else if (c == -1) {
+                        values.add(value.toString());
+                        return values;
+                    } else {
+                        if (c == '\n') line++;
+                        value.append((char) c);
+                    }
+                } else if (c == '"' && value.length() == 0) {
+                    quoted = true;
+                } else if (c == ',') {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else if (c == '\n' || c == '\r' || c == -1) {
+                    if (c == '\r') {
+                        int following = read();
+                        if (following != '\n') pending = following;
+                    }
+                    if (c != -1) line++;
+                    values.add(value.toString());
+                    return values;
+                } else {
+                    value.append((char) c);
+                }
+                c = read();
+            }
+        }
+
+        private int read() throws IOException {
+            if (pending != -2) {
+                int c = pending;
+                pending = -2;
+                return c;
+            }
+            return reader.read();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: CatalogImporter <books.csv | books.json> [data dir]");
+            System.exit(1);
+        }
+        DataService dataService = args.length > 1 ? new DataService(new File(args[1]), true) : new DataService();
+        try {
+            Result result = new CatalogImporter(dataService).importFile(new File(args[0]));
+            System.out.println(result);
+            for (Rejection rejection : result.getRejections()) {
+                System.out.println("  line " + rejection);
+            }
+            if (result.getRejectedCount() > result.getRejections().size()) {
+                System.out.println("  ... and " + (result.getRejectedCount() - result.getRejections().size()) + " more");
+            }
+        } finally {
+            dataService.close();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.util.List;
+
+// The books and users as of one data version. The lists are immutable and shared with later
+// snapshots until a book or user is added or removed, so taking a snapshot copies nothing and
+// taking it again before the next change returns the same object. The entities themselves are
+// live: their fields and loans may be newer than the version, never older.
+public final class CatalogSnapshot {
+    private final long version;
+    private final List<Book> books;
+    private final List<User> users;
+
+    CatalogSnapshot(long version, List<Book> books, List<User> users) {
+        this.version = version;
+        this.books = books;
+        this.users = users;
+    }
+
+    // Goes up with every change to the catalog, loans included
+    public long getVersion() {
+        return version;
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    public boolean changedSince(long version) {
+        return this.version > version;
+    }
+}
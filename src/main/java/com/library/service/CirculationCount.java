@@ -0,0 +1,31 @@
+package com.library.service;
+
+import java.time.LocalDate;
+
+// Borrows and returns in one day or month, as read from the circulation rollups
+public final class CirculationCount {
+    public enum Period { DAY, MONTH }
+
+    private final LocalDate start;
+    private final int borrows;
+    private final int returns;
+
+    CirculationCount(LocalDate start, int borrows, int returns) {
+        this.start = start;
+        this.borrows = borrows;
+        this.returns = returns;
+    }
+
+    // The day, or the first day of the month
+    public LocalDate getStart() {
+        return start;
+    }
+
+    public int getBorrows() {
+        return borrows;
+    }
+
+    public int getReturns() {
+        return returns;
+    }
+}
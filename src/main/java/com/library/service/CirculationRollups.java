@@ -0,0 +1,516 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+import java.io.*;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.zone.ZoneRules;
+import java.util.*;
+import java.util.function.Predicate;
+
+// Borrow and return counts per day and per month, for the whole library and for each book and
+// user, kept up to date as loans are made and returned so a trend or a monthly ranking reads a
+// handful of buckets instead of every loan. Books and users are numbered the first time they
+// are counted, and each bucket holds its counts in an open-addressing table of those numbers.
+// Per-book and per-user daily counts are only kept for the current calendar month and the
+// ENTITY_MONTHS - 1 before it; older days keep the library totals, and months keep everything.
+// The counts record loans as they happened: a book that is deleted or replaced keeps what
+// it was counted for, and only loans and returns its history gains are added. Guarded by its
+// own monitor, taken after the book monitors and never held while taking one.
+class CirculationRollups {
+    static final int ENTITY_MONTHS = 3;
+    private static final int MAGIC = 0x4C494252;
+    private static final int VERSION = 2;
+
+    private final ZoneId zone;
+    private final Map<String, Integer> bookNumbers = new HashMap<>();
+    private final List<String> bookIds = new ArrayList<>();
+    // By book number, the loans (archived ones included) and returns counted so far
+    private int[] countedLoans = new int[0];
+    private int[] countedReturns = new int[0];
+    private final Map<String, Integer> userNumbers = new HashMap<>();
+    private final List<String> userIds = new ArrayList<>();
+    // By epoch day and by year * 12 + month - 1
+    private final TreeMap<Integer, Bucket> days = new TreeMap<>();
+    private final TreeMap<Integer, Bucket> months = new TreeMap<>();
+    private final ZoneRules rules;
+    // The local day of the last date converted and its month, so that only a change of day
+    // goes through the calendar
+    private int cachedDay = Integer.MIN_VALUE;
+    private int cachedMonth;
+    private Bucket cachedMonthBucket;
+    // First day that keeps per-book and per-user counts, moved on at the start of a month
+    private int entityFromDay = Integer.MIN_VALUE;
+    private long nextRoll = Long.MIN_VALUE;
+    // Goes up with every count, so a caller can tell whether there is anything new to save
+    private long version;
+
+    CirculationRollups(ZoneId zone) {
+        this.zone = zone;
+        this.rules = zone.getRules();
+    }
+
+    private static final class Bucket {
+        int borrows;
+        int returns;
+        // Null for days too old to keep them
+        Counts books;
+        Counts users;
+    }
+
+    synchronized void borrowed(String bookId, String userId, long date) {
+        int book = bookNumber(bookId);
+        add(book, userId, date, 1, 0);
+        countedLoans[book]++;
+    }
+
+    synchronized void returned(String bookId, String userId, long date) {
+        int book = bookNumber(bookId);
+        add(book, userId, date, 0, 1);
+        countedReturns[book]++;
+    }
+
+    // Brings the counts up to date with every book, e.g. after a load
+    void update(Collection<Book> books) {
+        for (Book book : books) {
+            update(book);
+        }
+    }
+
+    synchronized void clear() {
+        bookNumbers.clear();
+        bookIds.clear();
+        userNumbers.clear();
+        userIds.clear();
+        countedLoans = new int[0];
+        countedReturns = new int[0];
+        days.clear();
+        months.clear();
+        cachedDay = Integer.MIN_VALUE;
+        cachedMonthBucket = null;
+        nextRoll = Long.MIN_VALUE;
+        version++;
+    }
+
+    synchronized long getVersion() {
+        return version;
+    }
+
+    // Counts what the book's history gained since the book was last counted, e.g. when it
+    // enters the catalog or another copy of it takes its place. New loans are the last ones in
+    // the history and new returns the latest ones by date. An unchanged history adds nothing,
+    // and one that lost loans, such as a replacement with a shorter history, leaves the counts
+    // and what was counted as they are: lowering the marks would count the same loans again
+    // once the book is back to its earlier total.
+    void update(Book book) {
+        synchronized (book) {
+            synchronized (this) {
+                int number = bookNumber(book.getId());
+                int loans = book.getTotalBorrowCount();
+                int returns = loans - book.getBorrowedCopies();
+                int count = book.getLoanCount();
+                for (int i = count - Math.min(loans - countedLoans[number], count); i < count; i++) {
+                    add(number, book.getLoanUserId(i), book.getLoanBorrowDate(i), 1, 0);
+                }
+                if (returns > countedReturns[number]) {
+                    for (int i : latestReturns(book, returns - countedReturns[number])) {
+                        add(number, book.getLoanUserId(i), book.getLoanReturnDate(i), 0, 1);
+                    }
+                }
+                countedLoans[number] = Math.max(countedLoans[number], loans);
+                countedReturns[number] = Math.max(countedReturns[number], returns);
+            }
+        }
+    }
+
+    // Indexes of the returned loans with the latest return dates, at most limit of them
+    private static List<Integer> latestReturns(Book book, int limit) {
+        PriorityQueue<Integer> latest = new PriorityQueue<>(Comparator.comparingLong(book::getLoanReturnDate));
+        for (int i = 0; i < book.getLoanCount(); i++) {
+            if (!book.isLoanReturned(i)) continue;
+            latest.add(i);
+            if (latest.size() > limit) {
+                latest.poll();
+            }
+        }
+        return new ArrayList<>(latest);
+    }
+
+    // For records that are no longer in any book's history, such as archived ones when
+    // counting from scratch. The book's counted loans are left alone, as update only ever
+    // counts loans that are still in its history.
+    synchronized void addRecords(String bookId, List<Book.BorrowRecord> records) {
+        int book = bookNumber(bookId);
+        for (Book.BorrowRecord record : records) {
+            add(book, record.getUserId(), record.getBorrowDate(), 1, 0);
+            if (record.isReturned()) {
+                add(book, record.getUserId(), record.getReturnDate(), 0, 1);
+            }
+        }
+    }
+
+    // One count per day or month from the one holding from to the one holding to, both
+    // included, with zeros where nothing happened
+    synchronized List<CirculationCount> totals(CirculationCount.Period period, LocalDate from, LocalDate to) {
+        return series(period, from, to, bucket -> bucket.borrows, bucket -> bucket.returns);
+    }
+
+    // The same for one book or user. Daily counts before the ENTITY_MONTHS months are zero.
+    synchronized List<CirculationCount> forBook(String bookId, CirculationCount.Period period,
+                                                LocalDate from, LocalDate to) {
+        Integer number = bookNumbers.get(bookId);
+        int key = number != null ? number : -1;
+        return series(period, from, to, bucket -> bucket.books != null ? bucket.books.borrows(key) : 0,
+                bucket -> bucket.books != null ? bucket.books.returns(key) : 0);
+    }
+
+    synchronized List<CirculationCount> forUser(String userId, CirculationCount.Period period,
+                                                LocalDate from, LocalDate to) {
+        Integer number = userNumbers.get(userId);
+        int key = number != null ? number : -1;
+        return series(period, from, to, bucket -> bucket.users != null ? bucket.users.borrows(key) : 0,
+                bucket -> bucket.users != null ? bucket.users.returns(key) : 0);
+    }
+
+    // The most borrowed books (or the users who borrowed most) in the month, most first,
+    // among the ids listed accepts. The entries are named by id; callers put in titles or names.
+    synchronized List<LibraryStats.Entry> top(YearMonth month, boolean books, int limit, Predicate<String> listed) {
+        Bucket bucket = months.get(monthIndex(month));
+        if (bucket == null || limit <= 0) return Collections.emptyList();
+        Counts counts = books ? bucket.books : bucket.users;
+        List<String> ids = books ? bookIds : userIds;
+        // Smallest of the best so far on top, so each entry costs O(log limit); ties go to the
+        // smaller id
+        Comparator<LibraryStats.Entry> ranking = Comparator.comparingInt(LibraryStats.Entry::getCount)
+                .thenComparing(LibraryStats.Entry::getId, Comparator.reverseOrder());
+        PriorityQueue<LibraryStats.Entry> best = new PriorityQueue<>(ranking);
+        for (int slot = 0; slot < counts.keys.length; slot++) {
+            int key = counts.keys[slot];
+            int borrows = key == Counts.EMPTY ? 0 : counts.values[2 * slot];
+            if (borrows <= 0 || !listed.test(ids.get(key))) continue;
+            if (best.size() == limit) {
+                LibraryStats.Entry worst = best.peek();
+                if (borrows < worst.getCount()
+                        || (borrows == worst.getCount() && ids.get(key).compareTo(worst.getId()) > 0)) {
+                    continue;
+                }
+                best.poll();
+            }
+            best.add(new LibraryStats.Entry(ids.get(key), ids.get(key), borrows));
+        }
+        List<LibraryStats.Entry> top = new ArrayList<>(best);
+        top.sort(ranking.reversed());
+        return top;
+    }
+
+    // Layout after the "LIBR" magic and a version number: the book ids and the user ids, each
+    // a count and the strings; per book number the loans and returns counted; then the days
+    // and the months, each a count and per bucket its key, borrows, returns and (days only)
+    // whether per-entity counts follow; per-entity counts are a count and then number,
+    // borrows, returns.
+    synchronized byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (List<String> ids : Arrays.asList(bookIds, userIds)) {
+            out.writeInt(ids.size());
+            for (String id : ids) {
+                BinarySnapshotFormat.writeString(out, id);
+            }
+        }
+        for (int book = 0; book < bookIds.size(); book++) {
+            out.writeInt(countedLoans[book]);
+            out.writeInt(countedReturns[book]);
+        }
+        out.writeInt(days.size());
+        for (Map.Entry<Integer, Bucket> day : days.entrySet()) {
+            out.writeInt(day.getKey());
+            writeBucket(out, day.getValue(), true);
+        }
+        out.writeInt(months.size());
+        for (Map.Entry<Integer, Bucket> month : months.entrySet()) {
+            out.writeInt(month.getKey());
+            writeBucket(out, month.getValue(), false);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // Replaces the contents with the file's. The books are then brought up to date with
+    // update, which only counts what their histories gained since the file was written.
+    synchronized void read(File file) throws IOException {
+        clear();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a circulation rollup file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported rollup version " + version + " in " + file);
+            }
+            for (List<String> ids : Arrays.asList(bookIds, userIds)) {
+                Map<String, Integer> numbers = ids == bookIds ? bookNumbers : userNumbers;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String id = BinarySnapshotFormat.readString(in);
+                    numbers.put(id, ids.size());
+                    ids.add(id);
+                }
+            }
+            countedLoans = new int[bookIds.size()];
+            countedReturns = new int[bookIds.size()];
+            for (int book = 0; book < bookIds.size(); book++) {
+                countedLoans[book] = in.readInt();
+                countedReturns[book] = in.readInt();
+            }
+            int dayCount = in.readInt();
+            for (int i = 0; i < dayCount; i++) {
+                days.put(in.readInt(), readBucket(in, true));
+            }
+            int monthCount = in.readInt();
+            for (int i = 0; i < monthCount; i++) {
+                months.put(in.readInt(), readBucket(in, false));
+            }
+        }
+        // Months that ended while the file was on disk lose their per-entity days now
+        rollIfDue();
+    }
+
+    private int bookNumber(String bookId) {
+        int number = number(bookNumbers, bookIds, bookId);
+        if (number >= countedLoans.length) {
+            int capacity = Math.max(16, 2 * countedLoans.length);
+            countedLoans = Arrays.copyOf(countedLoans, capacity);
+            countedReturns = Arrays.copyOf(countedReturns, capacity);
+        }
+        return number;
+    }
+
+    private void add(int book, String userId, long date, int borrows, int returns) {
+        rollIfDue();
+        version++;
+        convert(date);
+        int user = number(userNumbers, userIds, userId);
+        Bucket day = day(cachedDay);
+        day.borrows += borrows;
+        day.returns += returns;
+        if (day.books != null) {
+            day.books.add(book, borrows, returns);
+            day.users.add(user, borrows, returns);
+        }
+        if (cachedMonthBucket == null) {
+            cachedMonthBucket = months.computeIfAbsent(cachedMonth, k -> newEntityBucket());
+        }
+        Bucket month = cachedMonthBucket;
+        month.borrows += borrows;
+        month.returns += returns;
+        month.books.add(book, borrows, returns);
+        month.users.add(user, borrows, returns);
+    }
+
+    private Bucket day(int day) {
+        Bucket bucket = days.get(day);
+        if (bucket == null) {
+            bucket = day >= entityFromDay ? newEntityBucket() : new Bucket();
+            days.put(day, bucket);
+        }
+        return bucket;
+    }
+
+    private static Bucket newEntityBucket() {
+        Bucket bucket = new Bucket();
+        bucket.books = new Counts();
+        bucket.users = new Counts();
+        return bucket;
+    }
+
+    // At the start of a month, drops the per-entity counts of the month that fell out of the
+    // window. The window follows the calendar, so it holds the same days whenever the counts
+    // were loaded.
+    private void rollIfDue() {
+        long now = System.currentTimeMillis();
+        if (now < nextRoll) return;
+        LocalDate monthStart = Instant.ofEpochMilli(now).atZone(zone).toLocalDate().withDayOfMonth(1);
+        entityFromDay = (int) monthStart.minusMonths(ENTITY_MONTHS - 1).toEpochDay();
+        nextRoll = monthStart.plusMonths(1).atStartOfDay(zone).toInstant().toEpochMilli();
+        for (Bucket bucket : days.headMap(entityFromDay).values()) {
+            bucket.books = null;
+            bucket.users = null;
+        }
+    }
+
+    // The zone's offset at the instant gives the local day without building a date-time
+    private void convert(long date) {
+        int offset = rules.isFixedOffset() ? rules.getOffset(Instant.EPOCH).getTotalSeconds()
+                : rules.getOffset(Instant.ofEpochMilli(date)).getTotalSeconds();
+        int day = (int) Math.floorDiv(Math.floorDiv(date, 1000L) + offset, 86400L);
+        if (day == cachedDay) return;
+        cachedDay = day;
+        int month = monthIndex(YearMonth.from(LocalDate.ofEpochDay(day)));
+        if (month != cachedMonth) {
+            cachedMonth = month;
+            cachedMonthBucket = null;
+        }
+    }
+
+    private static int monthIndex(YearMonth month) {
+        return month.getYear() * 12 + month.getMonthValue() - 1;
+    }
+
+    private static int number(Map<String, Integer> numbers, List<String> ids, String id) {
+        Integer number = numbers.get(id);
+        if (number == null) {
+            number = ids.size();
+            numbers.put(id, number);
+            ids.add(id);
+        }
+        return number;
+    }
+
+    private interface CountReader {
+        int read(Bucket bucket);
+    }
+
+    private List<CirculationCount> series(CirculationCount.Period period, LocalDate from, LocalDate to,
+                                          CountReader borrows, CountReader returns) {
+        rollIfDue();
+        List<CirculationCount> series = new ArrayList<>();
+        if (period == CirculationCount.Period.DAY) {
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                Bucket bucket = days.get((int) day.toEpochDay());
+                series.add(bucket == null ? new CirculationCount(day, 0, 0)
+                        : new CirculationCount(day, borrows.read(bucket), returns.read(bucket)));
+            }
+        } else {
+            for (YearMonth month = YearMonth.from(from); !month.isAfter(YearMonth.from(to)); month = month.plusMonths(1)) {
+                Bucket bucket = months.get(monthIndex(month));
+                series.add(bucket == null ? new CirculationCount(month.atDay(1), 0, 0)
+                        : new CirculationCount(month.atDay(1), borrows.read(bucket), returns.read(bucket)));
+            }
+        }
+        return series;
+    }
+
+    private static void writeBucket(DataOutputStream out, Bucket bucket, boolean day) throws IOException {
+        out.writeInt(bucket.borrows);
+        out.writeInt(bucket.returns);
+        if (day) {
+            out.writeBoolean(bucket.books != null);
+            if (bucket.books == null) return;
+        }
+        for (Counts counts : new Counts[]{bucket.books, bucket.users}) {
+            out.writeInt(counts.size);
+            for (int slot = 0; slot < counts.keys.length; slot++) {
+                if (counts.keys[slot] == Counts.EMPTY) continue;
+                out.writeInt(counts.keys[slot]);
+                out.writeInt(counts.values[2 * slot]);
+                out.writeInt(counts.values[2 * slot + 1]);
+            }
+        }
+    }
+
+    private static Bucket readBucket(DataInputStream in, boolean day) throws IOException {
+        Bucket bucket = new Bucket();
+        bucket.borrows = in.readInt();
+        bucket.returns = in.readInt();
+        if (day && !in.readBoolean()) return bucket;
+        bucket.books = readCounts(in);
+        bucket.users = readCounts(in);
+        return bucket;
+    }
+
+    private static Counts readCounts(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        Counts counts = new Counts(size);
+        for (int i = 0; i < size; i++) {
+            counts.add(in.readInt(), in.readInt(), in.readInt());
+        }
+        return counts;
+    }
+
+    // Borrows and returns by book or user number, in open addressing with linear probing.
+    // Numbers are never removed; counts taken back to zero stay as zero.
+    private static final class Counts {
+        static final int EMPTY = -1;
+        private static final int MIN_CAPACITY = 8;
+
+        int[] keys;
+        // borrows[2 * slot], returns[2 * slot + 1]
+        int[] values;
+        int size;
+
+        Counts() {
+            this(MIN_CAPACITY);
+        }
+
+        // Room for expected entries without growing
+        Counts(int expected) {
+            int capacity = MIN_CAPACITY;
+            while (4 * expected > 3 * capacity) {
+                capacity *= 2;
+            }
+            keys = emptyKeys(capacity);
+            values = new int[2 * capacity];
+        }
+
+        void add(int key, int borrows, int returns) {
+            int slot = slot(key);
+            if (keys[slot] == EMPTY) {
+                if (4 * (size + 1) > 3 * keys.length) {
+                    resize(2 * keys.length);
+                    slot = slot(key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            values[2 * slot] += borrows;
+            values[2 * slot + 1] += returns;
+        }
+
+        int borrows(int key) {
+            int slot = key < 0 ? -1 : slot(key);
+            return slot < 0 || keys[slot] == EMPTY ? 0 : values[2 * slot];
+        }
+
+        int returns(int key) {
+            int slot = key < 0 ? -1 : slot(key);
+            return slot < 0 || keys[slot] == EMPTY ? 0 : values[2 * slot + 1];
+        }
+
+        // The key's slot, or the empty slot where it would go
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            // The high bits of the product depend on all bits of the key, so keys a table
+            // length apart do not pile up on one run of slots
+            int slot = key * 0x9E3779B9 >>> Integer.numberOfLeadingZeros(mask);
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize(int capacity) {
+            int[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = emptyKeys(capacity);
+            values = new int[2 * capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == EMPTY) continue;
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[2 * slot] = oldValues[2 * i];
+                values[2 * slot + 1] = oldValues[2 * i + 1];
+            }
+        }
+
+        private static int[] emptyKeys(int capacity) {
+            int[] keys = new int[capacity];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+}
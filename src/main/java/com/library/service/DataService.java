@@ -1,157 +1,1171 @@
 package com.library.service;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.library.metrics.Counter;
+import com.library.metrics.LatencyHistogram;
+import com.library.metrics.Metrics;
 import com.library.model.Book;
 import com.library.model.User;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 public class DataService {
     private static final String DATA_DIR = "data";
-    private static final String BOOKS_FILE = DATA_DIR + "/books.json";
-    private static final String USERS_FILE = DATA_DIR + "/users.json";
-    private static final Gson gson = new GsonBuilder()
-            .setPrettyPrinting()
-            .registerTypeAdapter(Book.class, new com.google.gson.JsonDeserializer<Book>() {
-                @Override
-                public Book deserialize(com.google.gson.JsonElement json, Type type, 
-                        com.google.gson.JsonDeserializationContext context) throws com.google.gson.JsonParseException {
-                    com.google.gson.JsonObject jsonObject = json.getAsJsonObject();
-                    
-                    String id = jsonObject.get("id").getAsString();
-                    String title = jsonObject.get("title").getAsString();
-                    String author = jsonObject.get("author").getAsString();
-                    String isbn = jsonObject.get("isbn").getAsString();
-                    
-                    Book book = new Book(id, title, author, isbn);
-                    
-                    if (jsonObject.has("totalCopies")) {
-                        book.setTotalCopies(jsonObject.get("totalCopies").getAsInt());
-                    }
-                    
-                    if (jsonObject.has("borrowRecords")) {
-                        Type recordListType = new TypeToken<List<Book.BorrowRecord>>(){}.getType();
-                        List<Book.BorrowRecord> records = context.deserialize(jsonObject.get("borrowRecords"), recordListType);
-                        book.getBorrowRecords().addAll(records);
-                    }
-                    
-                    return book;
-                }
-            })
-            .create();
-    
-    private List<Book> books;
-    private List<User> users;
+    private static final String BOOKS_FILE = "books.json";
+    private static final String USERS_FILE = "users.json";
+    private static final String SNAPSHOT_FILE = "library.bin";
+    private static final String JOURNAL_FILE = "journal.log";
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+    private static final int CHECKPOINT_THRESHOLD = 1000;
+    private static final String HISTORY_FILE = "history.log";
+    // Daily and monthly circulation counts, archived loans included
+    private static final String ROLLUPS_FILE = "circulation.bin";
+    private static final long ARCHIVE_INTERVAL_HOURS = 24;
+    private static final long DEFAULT_COMMIT_WINDOW_MILLIS = 50;
+    // How often the overdue tracker's clock moves on, and so how late an overdue loan may be noticed
+    private static final long OVERDUE_TICK_MILLIS = 60_000;
+    // Locking: catalogLock guards the maps and indexes below. Adding, editing and deleting
+    // entities takes it exclusively; lookups, searches, snapshots and loans share it. The loans
+    // themselves are made under the Book and User monitors (always book first), so borrowing
+    // and returning different books runs in parallel. Statistics and the pending-change queue
+    // have their own short locks, taken last.
+    private final ReentrantReadWriteLock catalogLock = new ReentrantReadWriteLock();
+    // Primary indexes double as the storage; insertion order is the display order
+    private final Map<String, Book> books = new LinkedHashMap<>();
+    private final Map<String, User> users = new LinkedHashMap<>();
+    private final SecondaryIndex<Book> booksByIsbn = new SecondaryIndex<>();
+    private final SecondaryIndex<User> usersByEmail = new SecondaryIndex<>();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final LoanIndex loanIndex = new LoanIndex();
+    private final OverdueTracker overdueTracker = new OverdueTracker(OVERDUE_TICK_MILLIS);
+    // Days and months are those of the local time zone
+    private final ZoneId zone = ZoneId.systemDefault();
+    private final CirculationRollups rollups = new CirculationRollups(zone);
+    private final StringPool strings = new StringPool();
+    // Immutable lists handed out by getAllBooks/getAllUsers, rebuilt after the next change
+    private volatile List<Book> booksView;
+    private volatile List<User> usersView;
+    // Bumped by every change, including loans, so readers can tell when nothing has changed
+    private final AtomicLong version = new AtomicLong();
+    private volatile CatalogSnapshot snapshot;
+    private final List<Consumer<CatalogChange>> changeListeners = new CopyOnWriteArrayList<>();
+    private final LibraryStats stats = new LibraryStats();
+    private final File dataDir;
+    private final Repository repository;
+    private final Repository.Catalog catalog = new Repository.Catalog() {
+        @Override
+        public Map<String, byte[]> encode(SnapshotFormat format) throws IOException {
+            return encodeSnapshot(format);
+        }
+        
+        @Override
+        public void read(Repository.CatalogReader reader) throws IOException {
+            catalogLock.readLock().lock();
+            try {
+                reader.read(books.values(), users.values());
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+        }
+    };
+    private final ScheduledExecutorService background;
+    private final Object checkpointLock = new Object();
+    // Rollups version last written to ROLLUPS_FILE, guarded by checkpointLock
+    private long savedRollups = -1;
+    private final GroupCommitter committer;
+    // Changes waiting for the committer, latest state per entity
+    private final Map<String, JournalEntry> pendingEntries = new LinkedHashMap<>();
+    // Set by addBatch until the next checkpoint: imported books are in no snapshot or journal yet
+    private volatile boolean unsavedImport;
+    private final HistoryArchive archive;
+    private final Metrics metrics = new Metrics();
+    private final LatencyHistogram loadLatency = metrics.histogram("load");
+    private final LatencyHistogram saveLatency = metrics.histogram("save");
+    private final LatencyHistogram journalLatency = metrics.histogram("journalAppend");
+    private final LatencyHistogram searchLatency = metrics.histogram("search");
+    private final LatencyHistogram borrowLatency = metrics.histogram("borrow");
+    private final LatencyHistogram returnLatency = metrics.histogram("return");
+    private final Counter saves = metrics.counter("saves");
+    private final Counter bytesWritten = metrics.counter("bytesWritten");
+    private final Counter journalEntries = metrics.counter("journalEntries");
+    // Returned records older than this are moved to the archive; negative disables archiving
+    private volatile long archiveAfterMillis = -1;
+    // Held for a whole archive run, before the catalog lock
+    private final Object archiveRun = new Object();
+    private volatile long loanPeriodMillis = Book.DEFAULT_LOAN_PERIOD_MILLIS;
     
+    // The store is picked with -Dlibrary.repository=sql (embedded database) or file (default)
     public DataService() {
+        this(new File(DATA_DIR), defaultRepository(new File(DATA_DIR)));
+    }
+    
+    public DataService(boolean journaled) {
+        this(new File(DATA_DIR), journaled);
+    }
+    
+    public DataService(File dataDir, boolean journaled) {
+        this(dataDir, journaled, new BinarySnapshotFormat(new File(dataDir, SNAPSHOT_FILE).getPath()));
+    }
+    
+    public DataService(boolean journaled, SnapshotFormat format) {
+        this(new File(DATA_DIR), journaled, format);
+    }
+    
+    // With journaling off every mutation rewrites the whole snapshot. The journal, the history
+    // archive and the JSON files to import from live in dataDir.
+    public DataService(File dataDir, boolean journaled, SnapshotFormat format) {
+        this(dataDir, new FileRepository(format, journaled ? new File(dataDir, JOURNAL_FILE).getPath() : null));
+    }
+    
+    // The history archive and the JSON files imported on first start live in dataDir
+    public DataService(File dataDir, Repository repository) {
         // Create data directory if it doesn't exist
-        new File(DATA_DIR).mkdirs();
+        dataDir.mkdirs();
+        this.dataDir = dataDir;
+        this.repository = repository;
+        archive = new HistoryArchive(new File(dataDir, HISTORY_FILE).getPath());
+        metrics.registerMBeans();
+        background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "data-service-background");
+            thread.setDaemon(true);
+            return thread;
+        });
         loadData();
+        committer = new GroupCommitter("data-service-writer", DEFAULT_COMMIT_WINDOW_MILLIS,
+                this::hasPending, this::drainPending);
+        background.scheduleWithFixedDelay(this::checkpointIfDirty,
+                CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        background.scheduleWithFixedDelay(this::archiveHistory,
+                ARCHIVE_INTERVAL_HOURS, ARCHIVE_INTERVAL_HOURS, TimeUnit.HOURS);
+        background.scheduleWithFixedDelay(this::checkOverdue,
+                OVERDUE_TICK_MILLIS, OVERDUE_TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    static Repository defaultRepository(File dataDir) {
+        if ("sql".equals(System.getProperty("library.repository"))) {
+            try {
+                return new SqlRepository(dataDir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return fileRepository(dataDir);
+    }
+    
+    // The binary snapshot and journal in dataDir
+    static FileRepository fileRepository(File dataDir) {
+        return new FileRepository(new BinarySnapshotFormat(new File(dataDir, SNAPSHOT_FILE).getPath()),
+                new File(dataDir, JOURNAL_FILE).getPath());
     }
     
     public void loadData() {
-        books = loadBooks();
-        users = loadUsers();
+        boolean imported;
+        catalogLock.writeLock().lock();
+        try {
+            imported = reload();
+            changed(CatalogChange.Entity.BOOK, CatalogChange.Kind.RELOADED, null);
+            changed(CatalogChange.Entity.USER, CatalogChange.Kind.RELOADED, null);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+        // Stored right away, so the repository holds the whole catalog before its first change
+        if (imported) {
+            checkpoint();
+        }
+    }
+    
+    // Returns true when the catalog was imported from the JSON files
+    private boolean reload() {
+        long start = metrics.start();
+        booksView = null;
+        usersView = null;
+        books.clear();
+        users.clear();
+        booksByIsbn.clear();
+        usersByEmail.clear();
+        searchIndex.clear();
+        loanIndex.clear();
+        overdueTracker.clear();
+        rollups.clear();
+        stats.clear();
+        strings.clear();
         
-        if (books == null) books = new ArrayList<>();
-        if (users == null) users = new ArrayList<>();
+        // A repository with nothing stored yet starts from the snapshot and journal when the
+        // directory has them, e.g. an install switched to the SQL store, as the JSON files were
+        // only read on that install's first start; otherwise from the JSON files
+        boolean imported = !repository.exists();
+        if (imported) {
+            FileRepository files = fileRepository(dataDir);
+            try {
+                if (files.exists()) {
+                    files.load(this::applyEntry);
+                } else {
+                    jsonFormat(dataDir).load(this::storeBook, this::putUser);
+                }
+            } catch (IOException e) {
+                // Keep whatever was read before the damaged part
+                e.printStackTrace();
+                metrics.error("import", e);
+            } finally {
+                try {
+                    files.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        try {
+            repository.load(this::applyEntry);
+        } catch (IOException e) {
+            // Keep whatever was read before the damaged part
+            e.printStackTrace();
+            metrics.error("load", e);
+        }
+        // Indexed in one go rather than book by book as they are read
+        searchIndex.putAll(books.values());
+        loanIndex.rebuild(books.values());
+        overdueTracker.rebuild(books.values(), System.currentTimeMillis());
+        loadRollups();
+        loadLatency.recordSince(start);
+        return imported;
     }
     
-    private List<Book> loadBooks() {
-        return loadFromFile(BOOKS_FILE, new TypeToken<List<Book>>(){}.getType());
+    // Search indexing is left to the caller
+    private void applyEntry(JournalEntry entry) {
+        switch (entry.op) {
+            case JournalEntry.PUT_BOOK:
+                storeBook(entry.book);
+                break;
+            case JournalEntry.DELETE_BOOK:
+                removeBook(entry.id);
+                break;
+            case JournalEntry.PUT_USER:
+                putUser(entry.user);
+                break;
+            case JournalEntry.DELETE_USER:
+                removeUser(entry.id);
+                break;
+        }
     }
     
-    private List<User> loadUsers() {
-        return loadFromFile(USERS_FILE, new TypeToken<List<User>>(){}.getType());
+    public void saveData() {
+        checkpoint();
     }
     
-    private <T> List<T> loadFromFile(String filename, Type type) {
-        try (Reader reader = new FileReader(filename)) {
-            return gson.fromJson(reader, type);
+    // Writes the current data in another format, e.g. JSON for people or other tools to read
+    public boolean exportTo(SnapshotFormat target) {
+        long start = metrics.start();
+        try {
+            return writeSnapshot(encodeSnapshot(target), start);
         } catch (IOException e) {
-            return new ArrayList<>();
+            e.printStackTrace();
+            metrics.error("save", e);
+            return false;
         }
     }
     
-    public void saveData() {
-        saveToFile(BOOKS_FILE, books);
-        saveToFile(USERS_FILE, users);
+    // Structural changes wait while the snapshot is encoded; loans carry on, and each
+    // entity is locked on its own while it is written
+    private Map<String, byte[]> encodeSnapshot(SnapshotFormat target) throws IOException {
+        catalogLock.readLock().lock();
+        try {
+            return target.encode(books.values(), users.values());
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    public static SnapshotFormat jsonFormat() {
+        return jsonFormat(new File(DATA_DIR));
+    }
+    
+    public static SnapshotFormat jsonFormat(File dataDir) {
+        return new JsonSnapshotFormat(new File(dataDir, BOOKS_FILE).getPath(), new File(dataDir, USERS_FILE).getPath());
+    }
+    
+    // Has the repository write a full image of the catalog, e.g. a fresh snapshot that
+    // replaces the journal entries it covers
+    public void checkpoint() {
+        synchronized (checkpointLock) {
+            long start = metrics.start();
+            // Cleared first: a batch imported while the catalog is read sets it again
+            unsavedImport = false;
+            try {
+                long bytes = repository.checkpoint(catalog);
+                saveLatency.recordSince(start);
+                saves.increment();
+                if (bytes > 0) bytesWritten.add(bytes);
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.error("checkpoint", e);
+            }
+            saveRollups();
+        }
+    }
+    
+    // The rollups are also saved when only they changed, as a store that writes every change
+    // itself, like the SQL one, has no checkpoints to do
+    private void checkpointIfDirty() {
+        if (repository.pendingChanges() > 0) {
+            checkpoint();
+        } else {
+            synchronized (checkpointLock) {
+                saveRollups();
+            }
+        }
+    }
+    
+    // Callers hold checkpointLock. The file need not match the catalog on disk: loading
+    // counts whatever the books gained since it was written.
+    private void saveRollups() {
+        long version = rollups.getVersion();
+        if (version == savedRollups) return;
+        try {
+            File file = new File(dataDir, ROLLUPS_FILE);
+            FileRepository.writeFiles(Collections.singletonMap(file.getPath(), rollups.encode()));
+            savedRollups = version;
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.error("checkpoint", e);
+        }
+    }
+    
+    // Durability barrier: returns once every change made before the call is on disk
+    public void flush() {
+        committer.flush();
     }
     
-    private void saveToFile(String filename, Object data) {
-        try (Writer writer = new FileWriter(filename)) {
-            gson.toJson(data, writer);
+    // How long the writer waits to gather more changes into one write
+    public void setCommitWindowMillis(long windowMillis) {
+        committer.setWindowMillis(windowMillis);
+    }
+    
+    // Writes out pending changes, stops the background work and leaves a compacted snapshot behind
+    public void close() {
+        committer.close();
+        background.shutdown();
+        checkpointIfDirty();
+        try {
+            repository.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        metrics.unregisterMBeans();
+    }
+    
+    // Latencies and counters of this service, also published over JMX under com.library
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    
+    // Enables archival mode: returned records older than maxAgeMillis are moved out of
+    // books.json into the history archive now and then once a day
+    public void setArchiveAge(long maxAgeMillis) {
+        archiveAfterMillis = maxAgeMillis;
+        background.execute(this::archiveHistory);
+    }
+    
+    public void archiveHistory() {
+        // One run at a time, as a second run would archive the same records again before
+        // the first has dropped them from their books
+        synchronized (archiveRun) {
+            long maxAge = archiveAfterMillis;
+            if (maxAge < 0) return;
+            long cutoff = System.currentTimeMillis() - maxAge;
+            catalogLock.readLock().lock();
+            try {
+                // Archive first and only then drop the records from their books; the archive is
+                // on disk before any book changes, so a crash before the books are saved only
+                // leaves a duplicate behind. The rollups counted the loans when they were made
+                // and keep them, so they are not touched here. Records
+                // returned before the cutoff stay put in between, as new returns are dated
+                // after it and books cannot be replaced under the read lock.
+                Map<Book, List<Book.BorrowRecord>> archived = new LinkedHashMap<>();
+                Map<String, List<Book.BorrowRecord>> byId = new LinkedHashMap<>();
+                for (Book book : books.values()) {
+                    List<Book.BorrowRecord> old = book.getReturnedBefore(cutoff);
+                    if (old.isEmpty()) continue;
+                    archived.put(book, old);
+                    byId.put(book.getId(), old);
+                }
+                if (archived.isEmpty()) return;
+                try {
+                    archive.append(byId);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    metrics.error("archive", e);
+                    return;
+                }
+                for (Map.Entry<Book, List<Book.BorrowRecord>> entry : archived.entrySet()) {
+                    Book book = entry.getKey();
+                    synchronized (book) {
+                        book.archiveReturnedBefore(cutoff);
+                        loanIndex.archived(book, entry.getValue());
+                    }
+                    persist(JournalEntry.putBook(book), CatalogChange.Kind.LOANED);
+                }
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+        }
+    }
+    
+    // The rollups are read back from their file and then given what each book gained since
+    // it was written, so a start costs a look at every book rather than at every loan. Without
+    // the file, e.g. on the first start, every loan in the books and the archive is counted
+    // once and the file written right away.
+    private void loadRollups() {
+        File file = new File(dataDir, ROLLUPS_FILE);
+        boolean counted = false;
+        if (file.exists()) {
+            try {
+                rollups.read(file);
+                counted = true;
+                synchronized (checkpointLock) {
+                    savedRollups = rollups.getVersion();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.error("load", e);
+            }
+        }
+        if (!counted) {
+            rollups.clear();
+            try {
+                archive.forEachRecord((bookId, record) -> rollups.addRecords(bookId, Collections.singletonList(record)));
+            } catch (IOException e) {
+                // Trends then leave out the archived loans
+                e.printStackTrace();
+                metrics.error("load", e);
+            }
+        }
+        rollups.update(books.values());
+        if (!counted) {
+            synchronized (checkpointLock) {
+                saveRollups();
+            }
+        }
+    }
+    
+    // Returned records that were moved to the archive, oldest first. The archive is
+    // read from disk the first time this is called.
+    public List<Book.BorrowRecord> getArchivedHistory(String bookId) {
+        return archive.getRecords(bookId);
+    }
+    
+    static boolean writeFiles(Map<String, byte[]> files) {
+        try {
+            FileRepository.writeFiles(files);
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
     }
     
+    // Writes the files of a snapshot, timed from start, and reports failures to the metrics
+    private boolean writeSnapshot(Map<String, byte[]> files, long start) {
+        try {
+            long bytes = FileRepository.writeFiles(files);
+            saveLatency.recordSince(start);
+            saves.increment();
+            bytesWritten.add(bytes);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            metrics.error("save", e);
+            return false;
+        }
+    }
+    
+    // Announces the change and queues it for the background writer. Repeated changes to the
+    // same entity within one commit window are coalesced into a single journal entry.
+    private void persist(JournalEntry entry, CatalogChange.Kind kind) {
+        changed(entry.entity(), kind, entry.entityId());
+        String key = entry.entityKey();
+        synchronized (pendingEntries) {
+            pendingEntries.remove(key);
+            pendingEntries.put(key, entry);
+        }
+        committer.markDirty();
+    }
+    
+    // Called on the writer thread. The repository reads each entity under its own lock
+    // when it writes the batch.
+    private boolean hasPending() {
+        synchronized (pendingEntries) {
+            return !pendingEntries.isEmpty();
+        }
+    }
+    
+    // An empty batch is skipped: without a journal a write rewrites the whole snapshot
+    private GroupCommitter.Batch drainPending() {
+        List<JournalEntry> entries;
+        synchronized (pendingEntries) {
+            if (pendingEntries.isEmpty()) return null;
+            entries = new ArrayList<>(pendingEntries.values());
+            pendingEntries.clear();
+        }
+        return () -> {
+            if (unsavedImport) {
+                // A change made during an import can refer to imported books, which replaying
+                // the journal would not find; a checkpoint writes them along with the change
+                checkpoint();
+                return;
+            }
+            long start = metrics.start();
+            try {
+                long bytes = repository.write(entries, catalog);
+                if (bytes > 0) bytesWritten.add(bytes);
+                journalLatency.recordSince(start);
+                journalEntries.add(entries.size());
+            } catch (IOException e) {
+                e.printStackTrace();
+                metrics.error("write", e);
+                // Fall back to a full checkpoint so the changes are not lost
+                checkpoint();
+                return;
+            }
+            if (repository.pendingChanges() >= CHECKPOINT_THRESHOLD) {
+                background.execute(this::checkpointIfDirty);
+            }
+        };
+    }
+    
     // Book operations
     public void addBook(Book book) {
-        books.add(book);
-        saveData();
+        catalogLock.writeLock().lock();
+        try {
+            putBook(book);
+            persist(JournalEntry.putBook(book), CatalogChange.Kind.ADDED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+    
+    // Bulk insert for CatalogImporter: one lock for the whole batch, one search index pass and
+    // no journal entries. The caller persists everything with a single saveData() at the end;
+    // loans and edits made meanwhile are saved by a checkpoint instead of the journal.
+    void addBatch(List<Book> batch) {
+        catalogLock.writeLock().lock();
+        try {
+            unsavedImport = true;
+            for (Book book : batch) {
+                indexLoans(books.get(book.getId()), book);
+                storeBook(book);
+            }
+            searchIndex.putAll(batch);
+            changed(CatalogChange.Entity.BOOK, CatalogChange.Kind.RELOADED, null);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
     }
     
     public void updateBook(Book book) {
-        for (int i = 0; i < books.size(); i++) {
-            if (books.get(i).getId().equals(book.getId())) {
-                books.set(i, book);
-                break;
+        catalogLock.writeLock().lock();
+        try {
+            if (!books.containsKey(book.getId())) return;
+            putBook(book);
+            // Copies added for people waiting go straight to them
+            synchronized (book) {
+                if (handOff(book)) stats.putBook(book);
             }
+            persist(JournalEntry.putBook(book), CatalogChange.Kind.UPDATED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+    
+    // Edits change the live book under the catalog lock and its monitor, so that readers never
+    // see half an edit and the ISBN and search indexes move from the old values to the new.
+    // Returns false if the book no longer exists.
+    public boolean editBook(String bookId, String title, String author, String isbn) {
+        catalogLock.writeLock().lock();
+        try {
+            Book book = books.get(bookId);
+            if (book == null) return false;
+            synchronized (book) {
+                book.setTitle(title);
+                book.setAuthor(strings.canonical(author));
+                book.setIsbn(isbn);
+                stats.putBook(book);
+            }
+            booksByIsbn.put(bookId, isbn, book);
+            searchIndex.put(bookId, title, author, isbn);
+            persist(JournalEntry.putBook(book), CatalogChange.Kind.UPDATED);
+            return true;
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+    
+    // One more copy, which goes straight to the first in line if anyone is waiting. Like a
+    // loan, this only needs the book's monitor.
+    public boolean addCopy(String bookId) {
+        catalogLock.readLock().lock();
+        try {
+            Book book = books.get(bookId);
+            if (book == null) return false;
+            synchronized (book) {
+                book.setTotalCopies(book.getTotalCopies() + 1);
+                handOff(book);
+                stats.putBook(book);
+                persist(JournalEntry.putBook(book), CatalogChange.Kind.UPDATED);
+            }
+            return true;
+        } finally {
+            catalogLock.readLock().unlock();
         }
-        saveData();
     }
     
     public void deleteBook(String bookId) {
-        books.removeIf(book -> book.getId().equals(bookId));
-        saveData();
+        catalogLock.writeLock().lock();
+        try {
+            removeBook(bookId);
+            persist(JournalEntry.deleteBook(bookId), CatalogChange.Kind.REMOVED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
     }
     
+    // Index maintenance shared by mutations, loading and journal replay.
+    // Callers hold the catalog write lock.
+    private void putBook(Book book) {
+        indexLoans(books.get(book.getId()), book);
+        storeBook(book);
+        searchIndex.put(book.getId(), book.getTitle(), book.getAuthor(), book.getIsbn());
+    }
+    
+    // A book object taking the place of another brings its own loans. The rollups keep what
+    // they counted for the previous one and only add what the new history gained.
+    private void indexLoans(Book previous, Book book) {
+        if (previous == book) return;
+        if (previous != null) {
+            loanIndex.removeBook(previous);
+            overdueTracker.removeBook(previous);
+        }
+        loanIndex.addBook(book);
+        overdueTracker.addBook(book);
+        rollups.update(book);
+    }
+    
+    // Everything but the search and loan indexes, which bulk paths fill in afterwards
+    private void storeBook(Book book) {
+        book.canonicalize(strings::canonical);
+        if (books.put(book.getId(), book) != book) {
+            booksView = null;
+        }
+        booksByIsbn.put(book.getId(), book.getIsbn(), book);
+        stats.putBook(book);
+    }
+    
+    private void removeBook(String bookId) {
+        Book removed = books.remove(bookId);
+        if (removed != null) {
+            booksView = null;
+            loanIndex.removeBook(removed);
+            overdueTracker.removeBook(removed);
+        }
+        booksByIsbn.remove(bookId);
+        searchIndex.remove(bookId);
+        stats.removeBook(bookId);
+    }
+    
+    // Returns the same immutable list until a book is added or removed, so callers
+    // neither copy the catalog nor block writers while they walk it
     public List<Book> getAllBooks() {
-        return new ArrayList<>(books);
+        List<Book> view = booksView;
+        if (view == null) {
+            catalogLock.readLock().lock();
+            try {
+                view = Collections.unmodifiableList(new ArrayList<>(books.values()));
+                booksView = view;
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+        }
+        return view;
+    }
+    
+    // The same snapshot until the next change; callers that remember its version can skip
+    // their work when getVersion() has not moved on
+    public CatalogSnapshot getSnapshot() {
+        CatalogSnapshot current = snapshot;
+        if (current != null && current.getVersion() == version.get()) {
+            return current;
+        }
+        catalogLock.readLock().lock();
+        try {
+            // Read before the lists, so the lists are at least as new as the version
+            current = new CatalogSnapshot(version.get(), getAllBooks(), getAllUsers());
+            snapshot = current;
+            return current;
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    public long getVersion() {
+        return version.get();
+    }
+    
+    // Listeners are called on the thread that made the change, while it still holds the
+    // catalog locks, so they must only hand the change off (e.g. to the event thread) and
+    // never call back into this service. OVERDUE changes come from the background thread.
+    public void addChangeListener(Consumer<CatalogChange> listener) {
+        changeListeners.add(listener);
+    }
+    
+    public void removeChangeListener(Consumer<CatalogChange> listener) {
+        changeListeners.remove(listener);
+    }
+    
+    private void changed(CatalogChange.Entity entity, CatalogChange.Kind kind, String id) {
+        CatalogChange change = new CatalogChange(entity, kind, id, version.incrementAndGet());
+        for (Consumer<CatalogChange> listener : changeListeners) {
+            listener.accept(change);
+        }
+    }
+    
+    public Book getBookById(String id) {
+        if (id == null) return null;
+        catalogLock.readLock().lock();
+        try {
+            return books.get(id);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    public Book getBookByIsbn(String isbn) {
+        catalogLock.readLock().lock();
+        try {
+            return booksByIsbn.get(isbn);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Ids of books whose title, author or ISBN contains the text, ignoring case
+    public Set<String> searchBookIds(String text) {
+        long start = metrics.start();
+        catalogLock.readLock().lock();
+        try {
+            return searchIndex.search(text);
+        } finally {
+            catalogLock.readLock().unlock();
+            searchLatency.recordSince(start);
+        }
+    }
+    
+    // At most limit ids, best matches first
+    public List<String> searchBookIdsRanked(String text, int limit) {
+        long start = metrics.start();
+        catalogLock.readLock().lock();
+        try {
+            return searchIndex.searchRanked(text, limit);
+        } finally {
+            catalogLock.readLock().unlock();
+            searchLatency.recordSince(start);
+        }
+    }
+    
+    // Circulation
+    // Lends a copy of the book to the user. The book and the user change together under
+    // their own locks. Returns false if no copy is free or the user already has the book.
+    public boolean borrowBook(String bookId, String userId) {
+        long start = metrics.start();
+        catalogLock.readLock().lock();
+        try {
+            Book book = books.get(bookId);
+            User user = users.get(userId);
+            if (book == null || user == null) return false;
+            synchronized (book) {
+                synchronized (user) {
+                    if (!book.isAvailable() || user.hasBorrowed(bookId)) return false;
+                    // Free copies are only left over when nobody is waiting, so a user
+                    // borrowing one is not jumping the line; any hold of theirs is done with
+                    book.removeHold(userId);
+                    lend(book, user);
+                    recordLoanChange(book, user);
+                }
+            }
+            return true;
+        } finally {
+            catalogLock.readLock().unlock();
+            borrowLatency.recordSince(start);
+        }
+    }
+    
+    // Returns false if the user has no open loan of the book
+    public boolean returnBook(String bookId, String userId) {
+        long start = metrics.start();
+        catalogLock.readLock().lock();
+        try {
+            Book book = books.get(bookId);
+            User user = users.get(userId);
+            if (book == null || user == null) return false;
+            synchronized (book) {
+                synchronized (user) {
+                    int loan = book.returnLoan(userId);
+                    if (loan == -1) return false;
+                    user.returnBook(bookId);
+                    loanIndex.returned(book, book.getLoanBorrowDate(loan), book.getLoanReturnDate(loan));
+                    overdueTracker.returned(book, userId);
+                    rollups.returned(bookId, userId, book.getLoanReturnDate(loan));
+                    stats.putUser(user);
+                }
+                // Still holding the book, so the copy reaches the next in line before anyone
+                // else can borrow it. The returning user's monitor is let go first, as the
+                // holder's is taken next.
+                handOff(book);
+                recordLoanChange(book, user);
+            }
+            return true;
+        } finally {
+            catalogLock.readLock().unlock();
+            returnLatency.recordSince(start);
+        }
+    }
+    
+    // Puts the user in line for the book. Returns their place in line (1 is next), or 0 if no
+    // hold was placed: the book or user does not exist, the user already has the book, or a
+    // copy is free to borrow right now. A user already in line keeps their place.
+    public int placeHold(String bookId, String userId) {
+        catalogLock.readLock().lock();
+        try {
+            Book book = books.get(bookId);
+            User user = users.get(userId);
+            if (book == null || user == null) return 0;
+            synchronized (book) {
+                synchronized (user) {
+                    if (user.hasBorrowed(bookId)) return 0;
+                }
+                int position = book.getHoldPosition(userId);
+                if (position != 0) return position;
+                if (book.isAvailable()) return 0;
+                book.addHold(userId);
+                persist(JournalEntry.putBook(book), CatalogChange.Kind.LOANED);
+                return book.getHoldCount();
+            }
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Returns false if the user was not waiting for the book
+    public boolean cancelHold(String bookId, String userId) {
+        catalogLock.readLock().lock();
+        try {
+            Book book = books.get(bookId);
+            if (book == null) return false;
+            synchronized (book) {
+                if (!book.removeHold(userId)) return false;
+                persist(JournalEntry.putBook(book), CatalogChange.Kind.LOANED);
+                return true;
+            }
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // 1 for the next in line, 0 when the user is not waiting for the book
+    public int getHoldPosition(String bookId, String userId) {
+        Book book = getBookById(bookId);
+        return book != null ? book.getHoldPosition(userId) : 0;
+    }
+    
+    // Callers hold the catalog lock and the book's and user's monitors. The user's statistics
+    // are updated here, while their monitor keeps a concurrent loan of theirs from publishing
+    // a newer count first that this one would then overwrite.
+    private void lend(Book book, User user) {
+        book.borrowBook(user, loanPeriodMillis);
+        user.borrowBook(book.getId());
+        int loan = book.getLoanCount() - 1;
+        loanIndex.borrowed(book, book.getLoanBorrowDate(loan));
+        overdueTracker.borrowed(book, user.getId(), book.getLoanDueDate(loan));
+        rollups.borrowed(book.getId(), user.getId(), book.getLoanBorrowDate(loan));
+        stats.putUser(user);
+    }
+    
+    // Lends free copies to the users waiting for them, first in line first, O(1) per copy.
+    // Holders who have since been deleted or got the book some other way are dropped from
+    // the line. Callers hold the catalog lock and the book's monitor, but no user's; the
+    // caller records the book's own change. Returns true if any copy was lent.
+    private boolean handOff(Book book) {
+        boolean lent = false;
+        while (book.isAvailable()) {
+            String userId = book.pollHold();
+            if (userId == null) break;
+            User holder = users.get(userId);
+            if (holder == null) continue;
+            synchronized (holder) {
+                if (holder.hasBorrowed(book.getId())) continue;
+                lend(book, holder);
+            }
+            lent = true;
+            persist(JournalEntry.putUser(holder), CatalogChange.Kind.LOANED);
+        }
+        return lent;
+    }
+    
+    // Date-range queries over the loan index. Each returns at most limit loans, oldest first,
+    // in O(log n) plus the loans returned.
+    
+    // Loans borrowed in [from, to)
+    public List<Loan> getLoansBorrowedBetween(long from, long to, int limit) {
+        catalogLock.readLock().lock();
+        try {
+            return loanIndex.borrowedBetween(from, to, limit, this::isCurrent);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Loans returned in [from, to), by return date
+    public List<Loan> getLoansReturnedBetween(long from, long to, int limit) {
+        catalogLock.readLock().lock();
+        try {
+            return loanIndex.returnedBetween(from, to, limit, this::isCurrent);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Loans not yet returned that were borrowed before the cutoff, e.g. open for over 30 days
+    public List<Loan> getOpenLoansBorrowedBefore(long cutoff, int limit) {
+        catalogLock.readLock().lock();
+        try {
+            return loanIndex.openBetween(Long.MIN_VALUE, cutoff, limit, this::isCurrent);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Loans past their due date that are still out, in the order they fell due
+    public List<Loan> getOverdueLoans(int limit) {
+        catalogLock.readLock().lock();
+        try {
+            return overdueTracker.overdue(limit, this::isCurrent);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    public int getOverdueCount() {
+        return overdueTracker.overdueCount();
+    }
+    
+    // Loans made from now on are due this long after they are borrowed
+    public void setLoanPeriod(long loanPeriodMillis) {
+        this.loanPeriodMillis = loanPeriodMillis;
+    }
+    
+    // Runs on the background thread once a tick. Each book with a loan that has just fallen
+    // due is announced, so the panels showing overdue loans refresh.
+    private void checkOverdue() {
+        for (Book book : overdueTracker.advance(System.currentTimeMillis())) {
+            changed(CatalogChange.Entity.BOOK, CatalogChange.Kind.OVERDUE, book.getId());
+        }
+    }
+    
+    private boolean isCurrent(Book book) {
+        return books.get(book.getId()) == book;
+    }
+    
+    // Callers hold the book's monitor, for the same reason lend updates the user's statistics
+    // under theirs
+    private void recordLoanChange(Book book, User user) {
+        stats.putBook(book);
+        persist(JournalEntry.putBook(book), CatalogChange.Kind.LOANED);
+        persist(JournalEntry.putUser(user), CatalogChange.Kind.LOANED);
     }
     
     // User operations
     public void addUser(User user) {
-        users.add(user);
-        saveData();
+        catalogLock.writeLock().lock();
+        try {
+            putUser(user);
+            persist(JournalEntry.putUser(user), CatalogChange.Kind.ADDED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
     }
     
     public void updateUser(User user) {
-        for (int i = 0; i < users.size(); i++) {
-            if (users.get(i).getId().equals(user.getId())) {
-                users.set(i, user);
-                break;
+        catalogLock.writeLock().lock();
+        try {
+            if (!users.containsKey(user.getId())) return;
+            putUser(user);
+            persist(JournalEntry.putUser(user), CatalogChange.Kind.UPDATED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+    
+    // Changes the live user under the catalog lock and their monitor and moves them in the
+    // email index; a null password keeps the current one. Returns false if the user no
+    // longer exists.
+    public boolean editUser(String userId, String name, String email, String password) {
+        catalogLock.writeLock().lock();
+        try {
+            User user = users.get(userId);
+            if (user == null) return false;
+            synchronized (user) {
+                user.setName(name);
+                user.setEmail(email);
+                if (password != null) {
+                    user.setPassword(password);
+                }
+                stats.putUser(user);
             }
+            usersByEmail.put(userId, email, user);
+            persist(JournalEntry.putUser(user), CatalogChange.Kind.UPDATED);
+            return true;
+        } finally {
+            catalogLock.writeLock().unlock();
         }
-        saveData();
     }
     
     public void deleteUser(String userId) {
-        users.removeIf(user -> user.getId().equals(userId));
-        saveData();
+        catalogLock.writeLock().lock();
+        try {
+            removeUser(userId);
+            persist(JournalEntry.deleteUser(userId), CatalogChange.Kind.REMOVED);
+        } finally {
+            catalogLock.writeLock().unlock();
+        }
+    }
+    
+    private void putUser(User user) {
+        user.canonicalize(strings::canonical, this::canonicalBookId);
+        if (users.put(user.getId(), user) != user) {
+            usersView = null;
+        }
+        usersByEmail.put(user.getId(), user.getEmail(), user);
+        stats.putUser(user);
+    }
+    
+    private String canonicalBookId(String bookId) {
+        Book book = books.get(bookId);
+        return book != null ? book.getId() : bookId;
+    }
+    
+    private void removeUser(String userId) {
+        if (users.remove(userId) != null) {
+            usersView = null;
+        }
+        usersByEmail.remove(userId);
+        stats.removeUser(userId);
     }
     
     public List<User> getAllUsers() {
-        return new ArrayList<>(users);
+        List<User> view = usersView;
+        if (view == null) {
+            catalogLock.readLock().lock();
+            try {
+                view = Collections.unmodifiableList(new ArrayList<>(users.values()));
+                usersView = view;
+            } finally {
+                catalogLock.readLock().unlock();
+            }
+        }
+        return view;
     }
     
     public User getUserByEmail(String email) {
-        return users.stream()
-                .filter(user -> user.getEmail().equals(email))
-                .findFirst()
-                .orElse(null);
+        catalogLock.readLock().lock();
+        try {
+            return usersByEmail.get(email);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // The borrower's current name, or the name recorded with the loan if the user is gone
+    public String getUserName(Book.BorrowRecord record) {
+        User user = getUserById(record.getUserId());
+        return user != null ? user.getName() : record.getUserName();
     }
     
     public User getUserById(String id) {
-        return users.stream()
-                .filter(user -> user.getId().equals(id))
-                .findFirst()
-                .orElse(null);
+        if (id == null) return null;
+        catalogLock.readLock().lock();
+        try {
+            return users.get(id);
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // Statistics
+    public LibraryStats.Snapshot getStats() {
+        return stats.snapshot();
+    }
+    
+    // Circulation over time, read from the rollups kept as loans are made and returned, so the
+    // cost depends on the number of days or months asked for, not on the number of loans.
+    // Both dates are included; for MONTH they pick the first and last month. Archived loans
+    // are counted too.
+    public List<CirculationCount> getCirculation(CirculationCount.Period period, LocalDate from, LocalDate to) {
+        return rollups.totals(period, from, to);
+    }
+    
+    // Daily counts of one book or user cover this calendar month and the two before it
+    // (CirculationRollups.ENTITY_MONTHS); monthly counts go back to the start
+    public List<CirculationCount> getBookCirculation(String bookId, CirculationCount.Period period,
+                                                     LocalDate from, LocalDate to) {
+        return rollups.forBook(bookId, period, from, to);
+    }
+    
+    public List<CirculationCount> getUserCirculation(String userId, CirculationCount.Period period,
+                                                     LocalDate from, LocalDate to) {
+        return rollups.forUser(userId, period, from, to);
+    }
+    
+    // The books borrowed most in the month, most first, counted in borrows. Deleted books
+    // keep their counts in the trends but are left out here.
+    public List<LibraryStats.Entry> getTopBooks(YearMonth month, int limit) {
+        catalogLock.readLock().lock();
+        try {
+            List<LibraryStats.Entry> top = new ArrayList<>();
+            for (LibraryStats.Entry entry : rollups.top(month, true, limit, books::containsKey)) {
+                Book book = books.get(entry.getId());
+                top.add(new LibraryStats.Entry(entry.getId(), book.getTitle(), entry.getCount()));
+            }
+            return top;
+        } finally {
+            catalogLock.readLock().unlock();
+        }
+    }
+    
+    // The users who borrowed most in the month, most first, deleted users left out
+    public List<LibraryStats.Entry> getTopReaders(YearMonth month, int limit) {
+        catalogLock.readLock().lock();
+        try {
+            List<LibraryStats.Entry> top = new ArrayList<>();
+            for (LibraryStats.Entry entry : rollups.top(month, false, limit, users::containsKey)) {
+                User user = users.get(entry.getId());
+                top.add(new LibraryStats.Entry(entry.getId(), user.getName(), entry.getCount()));
+            }
+            return top;
+        } finally {
+            catalogLock.readLock().unlock();
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,127 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Synthetic catalog for benchmarks and load tests. The same seed and sizes always give the
+// same books, users and loans, and the data keeps the model's rules: a user holds at most
+// one copy of a book and no book has more loans out than copies.
+//   java -cp lib-management.jar com.library.service.DatasetGenerator data 100000 20000 42
+public class DatasetGenerator {
+    private static final String[] ADJECTIVES = {
+        "Silent", "Hidden", "Last", "Broken", "Golden", "Distant", "Forgotten", "Crimson",
+        "Endless", "Quiet", "Burning", "Frozen", "Secret", "Lonely", "Ancient", "Wild"
+    };
+    private static final String[] NOUNS = {
+        "River", "Garden", "Empire", "Winter", "Harbor", "Mountain", "Letter", "Kingdom",
+        "Shadow", "Voyage", "Orchard", "Library", "Machine", "Island", "Promise", "Storm"
+    };
+    private static final String[] FIRST_NAMES = {
+        "Anna", "Ravi", "Mei", "Omar", "Lucia", "Kwame", "Sofia", "Hiro", "Priya", "Jonas",
+        "Amara", "Diego", "Elena", "Tariq", "Ingrid", "Yusuf", "Chloe", "Arjun", "Nadia", "Leo"
+    };
+    private static final String[] LAST_NAMES = {
+        "Sharma", "Okafor", "Lindqvist", "Tanaka", "Moreau", "Reddy", "Kowalski", "Haddad",
+        "Silva", "Novak", "Fischer", "Mensah", "Rossi", "Nguyen", "Patel", "Duarte"
+    };
+    private static final long START = 1_500_000_000_000L;
+    private static final long SPAN = TimeUnit.DAYS.toMillis(3 * 365);
+    private static final long MAX_LOAN = TimeUnit.DAYS.toMillis(60);
+    // Share of the newest loan per book that is still out
+    private static final double ACTIVE_SHARE = 0.2;
+
+    private final List<Book> books = new ArrayList<>();
+    private final List<User> users = new ArrayList<>();
+
+    public DatasetGenerator(long seed, int bookCount, int userCount) {
+        Random random = new Random(seed);
+        for (int i = 0; i < userCount; i++) {
+            String first = pick(random, FIRST_NAMES);
+            String last = pick(random, LAST_NAMES);
+            users.add(new User("u" + i, first + " " + last,
+                    first.toLowerCase() + "." + last.toLowerCase() + i + "@example.com", "password" + i));
+        }
+        for (int i = 0; i < bookCount; i++) {
+            String title = "The " + pick(random, ADJECTIVES) + " " + pick(random, NOUNS)
+                    + (random.nextInt(4) == 0 ? " " + (2 + random.nextInt(5)) : "");
+            String author = pick(random, FIRST_NAMES) + " " + pick(random, LAST_NAMES);
+            Book book = new Book("b" + i, title, author, isbn(i));
+            book.setTotalCopies(1 + random.nextInt(5));
+            if (!users.isEmpty()) {
+                addLoans(random, book);
+            }
+            books.add(book);
+        }
+    }
+
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    // Writes books.json and users.json into dir, ready to be imported by a DataService there
+    public boolean writeJson(File dir) throws IOException {
+        dir.mkdirs();
+        return DataService.writeFiles(DataService.jsonFormat(dir).encode(books, users));
+    }
+
+    // Returned loans spread over three years, and now and then a loan that is still out
+    private void addLoans(Random random, Book book) {
+        int count = random.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            User user = users.get(random.nextInt(users.size()));
+            boolean active = i == count - 1 && random.nextDouble() < ACTIVE_SHARE;
+            if (active && (!book.isAvailable() || user.hasBorrowed(book.getId()))) {
+                active = false;
+            }
+            Book.BorrowRecord record = new Book.BorrowRecord(user.getId(), user.getName());
+            record.setBorrowDate(START + (long) (random.nextDouble() * SPAN));
+            if (active) {
+                user.borrowBook(book.getId());
+            } else {
+                record.setReturned(true);
+                record.setReturnDate(record.getBorrowDate() + (long) (random.nextDouble() * MAX_LOAN));
+            }
+            book.addBorrowRecord(record);
+        }
+    }
+
+    // 978-prefixed ISBN-13 with a valid check digit
+    private static String isbn(int n) {
+        String digits = "978" + String.format("%09d", n);
+        int sum = 0;
+        for (int i = 0; i < 12; i++) {
+            sum += (digits.charAt(i) - '0') * (i % 2 == 0 ? 1 : 3);
+        }
+        return digits + (10 - sum % 10) % 10;
+    }
+
+    private static String pick(Random random, String[] values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: DatasetGenerator <data dir> <books> <users> [seed]");
+            System.exit(1);
+        }
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+        DatasetGenerator dataset = new DatasetGenerator(seed, Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+        File dir = new File(args[0]);
+        if (!dataset.writeJson(dir)) {
+            System.exit(1);
+        }
+        System.out.println("Wrote " + dataset.getBooks().size() + " books and " + dataset.getUsers().size()
+                + " users to " + new File(dir, "books.json") + " and " + new File(dir, "users.json"));
+    }
+}
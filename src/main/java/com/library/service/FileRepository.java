@@ -0,0 +1,139 @@
+package com.library.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// The data directory store: a full snapshot in some SnapshotFormat, plus optionally a journal
+// of the changes made since it was written. Without the journal every batch of changes
+// rewrites the whole snapshot.
+public class FileRepository implements Repository {
+    // Journal entries are kept on a single line each
+    private static final Gson compactGson = new GsonBuilder()
+            .registerTypeAdapter(Book.class, new BookTypeAdapter())
+            .registerTypeAdapter(User.class, new UserTypeAdapter())
+            .create();
+
+    private final SnapshotFormat format;
+    private final Journal journal;
+
+    public FileRepository(SnapshotFormat format, String journalFile) {
+        this.format = format;
+        this.journal = journalFile != null ? new Journal(journalFile) : null;
+    }
+
+    @Override
+    public boolean exists() {
+        return format.exists();
+    }
+
+    // The snapshot first, then the journal on top of it. A damaged snapshot does not stop the
+    // journal from being replayed; the first failure is reported once both have been read.
+    @Override
+    public void load(Consumer<JournalEntry> entries) throws IOException {
+        IOException failure = null;
+        if (format.exists()) {
+            try {
+                format.load(book -> entries.accept(JournalEntry.putBook(book)),
+                        user -> entries.accept(JournalEntry.putUser(user)));
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (journal != null) {
+            try {
+                journal.replay(line -> entries.accept(compactGson.fromJson(line, JournalEntry.class)));
+            } catch (IOException | JsonParseException e) {
+                if (failure == null) failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // Each entity is serialized under its own lock, so it is written in a consistent state
+    @Override
+    public long write(List<JournalEntry> changes, Catalog catalog) throws IOException {
+        if (journal == null) {
+            return writeFiles(catalog.encode(format));
+        }
+        List<String> lines = new ArrayList<>(changes.size());
+        for (JournalEntry entry : changes) {
+            lines.add(compactGson.toJson(entry));
+        }
+        return journal.append(lines);
+    }
+
+    // The journal is rotated before encoding: everything in the old journal happened before
+    // the snapshot was taken, and changes made while it is being taken land in the new
+    // journal and are replayed. The rotated journal is only deleted once the snapshot has
+    // reached the disk, see saveToFile.
+    @Override
+    public long checkpoint(Catalog catalog) throws IOException {
+        if (journal != null) {
+            journal.rotate();
+        }
+        long bytes = writeFiles(catalog.encode(format));
+        if (journal != null) {
+            journal.discardRotated();
+        }
+        return bytes;
+    }
+
+    @Override
+    public int pendingChanges() {
+        return journal != null ? journal.size() : 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    // Returns the number of bytes written
+    static long writeFiles(Map<String, byte[]> files) throws IOException {
+        long bytes = 0;
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            saveToFile(file.getKey(), file.getValue());
+            bytes += file.getValue().length;
+        }
+        return bytes;
+    }
+
+    // Writes to a temporary file first so a crash never leaves a half-written snapshot. The
+    // data is forced to disk before the rename and the rename before returning; otherwise a
+    // power loss could leave an empty or truncated file in place of the old one, after the
+    // caller has already dropped what it would need to rebuild it.
+    private static void saveToFile(String filename, byte[] data) throws IOException {
+        File target = new File(filename);
+        File temp = new File(filename + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+            out.getChannel().force(true);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    // Forces a directory's entries, i.e. files created, renamed or deleted in it, to disk.
+    // Windows cannot open a directory for this and commits renames without it.
+    static void syncDirectory(File dir) throws IOException {
+        if (dir == null || System.getProperty("os.name", "").startsWith("Windows")) return;
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.library.service;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+// Background writer that batches persistence. Callers mark state dirty and return at once;
+// the writer waits for the commit window to collect more changes, drains them in one go
+// and writes them with a single durable write.
+class GroupCommitter {
+    // Drains the pending changes (under the caller's own lock) and returns the write to
+    // perform, or null when there is nothing left to write
+    interface Batch {
+        void commit();
+    }
+
+    private final Supplier<Batch> drain;
+    private final BooleanSupplier pending;
+    private final Thread thread;
+    private volatile long windowMillis;
+    private long requested;
+    private long committed;
+    private boolean closed;
+    private boolean flushRequested;
+
+    GroupCommitter(String name, long windowMillis, BooleanSupplier pending, Supplier<Batch> drain) {
+        this.drain = drain;
+        this.pending = pending;
+        this.windowMillis = windowMillis;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    public synchronized void markDirty() {
+        requested++;
+        notifyAll();
+    }
+
+    // Returns once everything marked dirty before the call has been written
+    public synchronized void flush() {
+        long target = requested;
+        while (committed < target && thread.isAlive()) {
+            flushRequested = true;
+            notifyAll();
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public void close() {
+        flush();
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long target;
+            synchronized (this) {
+                while (committed == requested && !closed) {
+                    waitQuietly(0);
+                }
+                if (committed == requested) {
+                    return;
+                }
+                target = requested;
+            }
+            // Changes are queued before they are marked dirty, so when nothing is queued now
+            // everything marked so far went out with an earlier batch
+            if (!pending.getAsBoolean()) {
+                synchronized (this) {
+                    committed = target;
+                    flushRequested = false;
+                    notifyAll();
+                }
+                continue;
+            }
+            synchronized (this) {
+                // Give the rest of a burst a chance to join this batch, unless someone is waiting
+                long deadline = System.currentTimeMillis() + windowMillis;
+                while (!flushRequested && !closed) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0) break;
+                    waitQuietly(left);
+                }
+                flushRequested = false;
+                target = requested;
+            }
+            try {
+                Batch batch = drain.get();
+                if (batch != null) batch.commit();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                committed = target;
+                notifyAll();
+            }
+        }
+    }
+
+    private void waitQuietly(long millis) {
+        try {
+            wait(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
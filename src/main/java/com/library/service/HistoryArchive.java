@@ -0,0 +1,98 @@
+package com.library.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.library.model.Book;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// Append-only store for returned borrow records that have aged out of books.json.
+// Nothing is read from disk until the archived history is first asked for.
+class HistoryArchive {
+    private static final Gson gson = new Gson();
+
+    private static class Line {
+        String bookId;
+        Book.BorrowRecord record;
+    }
+
+    private final File file;
+    private Map<String, List<Book.BorrowRecord>> recordsByBook;
+
+    HistoryArchive(String filename) {
+        this.file = new File(filename);
+    }
+
+    // Appends the records of a whole archive run through one writer and forces them to disk
+    // before returning, as the caller drops them from their books next
+    public synchronized void append(Map<String, List<Book.BorrowRecord>> records) throws IOException {
+        boolean created = !file.exists();
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            for (Map.Entry<String, List<Book.BorrowRecord>> book : records.entrySet()) {
+                for (Book.BorrowRecord record : book.getValue()) {
+                    Line line = new Line();
+                    line.bookId = book.getKey();
+                    line.record = record;
+                    writer.write(gson.toJson(line));
+                    writer.write('\n');
+                }
+            }
+            writer.flush();
+            stream.getFD().sync();
+        }
+        if (created) {
+            FileRepository.syncDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        if (recordsByBook != null) {
+            for (Map.Entry<String, List<Book.BorrowRecord>> book : records.entrySet()) {
+                recordsByBook.computeIfAbsent(book.getKey(), k -> new ArrayList<>()).addAll(book.getValue());
+            }
+        }
+    }
+
+    public synchronized List<Book.BorrowRecord> getRecords(String bookId) {
+        if (recordsByBook == null) {
+            recordsByBook = load();
+        }
+        List<Book.BorrowRecord> records = recordsByBook.get(bookId);
+        return records == null ? new ArrayList<>() : new ArrayList<>(records);
+    }
+
+    // Every archived record with its book id, read straight through without keeping them,
+    // e.g. to summarise an archive written before its rollups were kept
+    public synchronized void forEachRecord(BiConsumer<String, Book.BorrowRecord> action) throws IOException {
+        if (!file.exists()) return;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                if (text.isEmpty()) continue;
+                Line line = gson.fromJson(text, Line.class);
+                action.accept(line.bookId, line.record);
+            }
+        } catch (JsonParseException e) {
+            throw new IOException("Damaged history archive " + file, e);
+        }
+    }
+
+    private Map<String, List<Book.BorrowRecord>> load() {
+        Map<String, List<Book.BorrowRecord>> loaded = new HashMap<>();
+        if (!file.exists()) return loaded;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String text;
+            while ((text = reader.readLine()) != null) {
+                if (text.isEmpty()) continue;
+                Line line = gson.fromJson(text, Line.class);
+                loaded.computeIfAbsent(line.bookId, k -> new ArrayList<>()).add(line.record);
+            }
+        } catch (IOException | JsonParseException e) {
+            e.printStackTrace();
+        }
+        return loaded;
+    }
+}
@@ -0,0 +1,166 @@
+package com.library.service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Append-only log of mutations, one compact JSON entry per line.
+// On checkpoint the live log is rotated aside so new entries can keep coming in
+// while the snapshot is written, and the rotated file is discarded afterwards.
+class Journal implements Closeable {
+    private final File file;
+    private final File rotatedFile;
+    private FileOutputStream stream;
+    private Writer writer;
+    private int entryCount;
+
+    Journal(String filename) {
+        this.file = new File(filename);
+        this.rotatedFile = new File(filename + ".checkpoint");
+    }
+
+    // Writes a batch of entries and forces them to disk before returning. Returns the
+    // number of bytes added to the log.
+    public synchronized long append(List<String> entries) throws IOException {
+        boolean created = false;
+        if (writer == null) {
+            created = !file.exists();
+            if (!created) {
+                // An entry cut short by a crash or a failed write would swallow the next one
+                dropTornTail(file);
+            }
+            stream = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+        }
+        long before = stream.getChannel().position();
+        try {
+            for (String entry : entries) {
+                writer.write(entry);
+                writer.write('\n');
+            }
+            writer.flush();
+            stream.getFD().sync();
+        } catch (IOException e) {
+            // Reopened on the next append, which first cuts off whatever part made it out
+            try {
+                closeWriter();
+            } catch (IOException ignored) {
+                writer = null;
+                stream = null;
+            }
+            throw e;
+        }
+        if (created) {
+            // A new log is only found again after a crash once its directory entry is on disk
+            FileRepository.syncDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        entryCount += entries.size();
+        return stream.getChannel().position() - before;
+    }
+
+    public synchronized int size() {
+        return entryCount;
+    }
+
+    // Replays the rotated log (left behind by an unfinished checkpoint) and then the live log.
+    // Entries are full puts or deletes by id, so replaying on top of a newer snapshot is harmless.
+    // A crash while writing leaves at most the last entry of a file unfinished: an entry
+    // without its newline is cut off the file, and a last entry the handler cannot read is
+    // skipped, both with a warning. An unreadable entry further up stops the replay.
+    public synchronized void replay(Consumer<String> handler) throws IOException {
+        entryCount = 0;
+        for (File f : new File[]{rotatedFile, file}) {
+            if (!f.exists()) continue;
+            long dropped = dropTornTail(f);
+            if (dropped > 0) {
+                System.err.println("Dropped an unfinished entry of " + dropped + " bytes at the end of " + f);
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(f), StandardCharsets.UTF_8))) {
+                int lineNumber = 0;
+                String line = reader.readLine();
+                while (line != null) {
+                    String next = reader.readLine();
+                    lineNumber++;
+                    if (!line.isEmpty()) {
+                        try {
+                            handler.accept(line);
+                            entryCount++;
+                        } catch (RuntimeException e) {
+                            if (next != null) {
+                                throw new IOException("Damaged entry on line " + lineNumber + " of " + f, e);
+                            }
+                            System.err.println("Skipped the unreadable last entry of " + f + ": " + e);
+                        }
+                    }
+                    line = next;
+                }
+            }
+        }
+    }
+
+    // Cuts the file back to its last complete line and returns the number of bytes dropped
+    private static long dropTornTail(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            long length = raf.length();
+            long keep = 0;
+            byte[] block = new byte[8192];
+            for (long end = length; end > 0 && keep == 0; ) {
+                int n = (int) Math.min(block.length, end);
+                raf.seek(end - n);
+                raf.readFully(block, 0, n);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (block[i] == '\n') {
+                        keep = end - n + i + 1;
+                        break;
+                    }
+                }
+                end -= n;
+            }
+            if (keep < length) {
+                raf.setLength(keep);
+                raf.getFD().sync();
+            }
+            return length - keep;
+        }
+    }
+
+    public synchronized void rotate() throws IOException {
+        closeWriter();
+        if (file.exists()) {
+            if (rotatedFile.exists()) {
+                // A previous checkpoint failed; keep its entries and add ours after them, on
+                // disk before the live log goes
+                byte[] entries = Files.readAllBytes(file.toPath());
+                try (FileOutputStream out = new FileOutputStream(rotatedFile, true)) {
+                    out.write(entries);
+                    out.getFD().sync();
+                }
+                Files.delete(file.toPath());
+            } else if (!file.renameTo(rotatedFile)) {
+                throw new IOException("Could not rotate " + file);
+            }
+            FileRepository.syncDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        entryCount = 0;
+    }
+
+    public synchronized void discardRotated() {
+        rotatedFile.delete();
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            stream = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeWriter();
+    }
+}
@@ -0,0 +1,76 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+// A single mutation as written to the journal, and the unit of change repositories store
+public class JournalEntry {
+    public static final String PUT_BOOK = "PUT_BOOK";
+    public static final String DELETE_BOOK = "DELETE_BOOK";
+    public static final String PUT_USER = "PUT_USER";
+    public static final String DELETE_USER = "DELETE_USER";
+
+    String op;
+    String id;
+    Book book;
+    User user;
+
+    public String getOp() { return op; }
+
+    // Set for deletes
+    public String getId() { return id; }
+
+    public Book getBook() { return book; }
+
+    public User getUser() { return user; }
+
+    CatalogChange.Entity entity() {
+        return PUT_BOOK.equals(op) || DELETE_BOOK.equals(op) ? CatalogChange.Entity.BOOK : CatalogChange.Entity.USER;
+    }
+
+    String entityId() {
+        switch (op) {
+            case PUT_BOOK: return book.getId();
+            case PUT_USER: return user.getId();
+            default: return id;
+        }
+    }
+
+    // Identifies the entity the entry is about, for coalescing repeated changes
+    String entityKey() {
+        switch (op) {
+            case PUT_BOOK: return "book:" + book.getId();
+            case PUT_USER: return "user:" + user.getId();
+            case DELETE_BOOK: return "book:" + id;
+            default: return "user:" + id;
+        }
+    }
+
+    static JournalEntry putBook(Book book) {
+        JournalEntry entry = new JournalEntry();
+        entry.op = PUT_BOOK;
+        entry.book = book;
+        return entry;
+    }
+
+    static JournalEntry deleteBook(String bookId) {
+        JournalEntry entry = new JournalEntry();
+        entry.op = DELETE_BOOK;
+        entry.id = bookId;
+        return entry;
+    }
+
+    static JournalEntry putUser(User user) {
+        JournalEntry entry = new JournalEntry();
+        entry.op = PUT_USER;
+        entry.user = user;
+        return entry;
+    }
+
+    static JournalEntry deleteUser(String userId) {
+        JournalEntry entry = new JournalEntry();
+        entry.op = DELETE_USER;
+        entry.id = userId;
+        return entry;
+    }
+}
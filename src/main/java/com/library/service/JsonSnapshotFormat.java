@@ -0,0 +1,83 @@
+package com.library.service;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// The original pretty-printed books.json and users.json pair
+public class JsonSnapshotFormat implements SnapshotFormat {
+    private static final TypeAdapter<Book> BOOK_ADAPTER = new BookTypeAdapter();
+    private static final TypeAdapter<User> USER_ADAPTER = new UserTypeAdapter();
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String booksFile;
+    private final String usersFile;
+
+    public JsonSnapshotFormat(String booksFile, String usersFile) {
+        this.booksFile = booksFile;
+        this.usersFile = usersFile;
+    }
+
+    @Override
+    public boolean exists() {
+        return new File(booksFile).exists() || new File(usersFile).exists();
+    }
+
+    @Override
+    public void load(Consumer<Book> books, Consumer<User> users) throws IOException {
+        loadFromFile(booksFile, BOOK_ADAPTER, books);
+        loadFromFile(usersFile, USER_ADAPTER, users);
+    }
+
+    // Streams the array element by element into the sink, so no intermediate list
+    // or JSON tree of the whole file is ever held in memory
+    private <T> void loadFromFile(String filename, TypeAdapter<T> adapter, Consumer<T> sink) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) return;
+        try (JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8), 64 * 1024))) {
+            if (reader.peek() == JsonToken.NULL) return;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                T item = adapter.read(reader);
+                if (item != null) sink.accept(item);
+            }
+            reader.endArray();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new IOException("Malformed " + filename, e);
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> encode(Collection<Book> books, Collection<User> users) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put(booksFile, encode(books, BOOK_ADAPTER));
+        files.put(usersFile, encode(users, USER_ADAPTER));
+        return files;
+    }
+
+    private <T> byte[] encode(Collection<T> items, TypeAdapter<T> adapter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (JsonWriter writer = gson.newJsonWriter(new BufferedWriter(
+                new OutputStreamWriter(bytes, StandardCharsets.UTF_8)))) {
+            writer.beginArray();
+            for (T item : items) {
+                adapter.write(writer, item);
+            }
+            writer.endArray();
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,154 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.util.*;
+
+// Dashboard figures kept up to date on every put/remove instead of being recomputed from
+// the whole catalog. Each entity's last contribution is remembered by id, so an entity
+// edited in place is first subtracted with its old values and then added back.
+public class LibraryStats {
+    public static final int TOP_COUNT = 5;
+
+    public static class Entry {
+        private final String id;
+        private final String name;
+        private final int count;
+
+        Entry(String id, String name, int count) {
+            this.id = id;
+            this.name = name;
+            this.count = count;
+        }
+
+        public String getId() { return id; }
+        public String getName() { return name; }
+        public int getCount() { return count; }
+    }
+
+    public static class Snapshot {
+        private final int totalBooks;
+        private final int availableBooks;
+        private final int totalUsers;
+        private final int activeUsers;
+        private final List<Entry> popularBooks;
+        private final List<Entry> activeReaders;
+
+        Snapshot(int totalBooks, int availableBooks, int totalUsers, int activeUsers,
+                 List<Entry> popularBooks, List<Entry> activeReaders) {
+            this.totalBooks = totalBooks;
+            this.availableBooks = availableBooks;
+            this.totalUsers = totalUsers;
+            this.activeUsers = activeUsers;
+            this.popularBooks = popularBooks;
+            this.activeReaders = activeReaders;
+        }
+
+        public int getTotalBooks() { return totalBooks; }
+        public int getAvailableBooks() { return availableBooks; }
+        public int getBorrowedBooks() { return totalBooks - availableBooks; }
+        public int getTotalUsers() { return totalUsers; }
+        public int getActiveUsers() { return activeUsers; }
+        public List<Entry> getPopularBooks() { return popularBooks; }
+        public List<Entry> getActiveReaders() { return activeReaders; }
+    }
+
+    private static final Comparator<Entry> RANKING = Comparator.comparingInt(Entry::getCount).reversed()
+            .thenComparing(Entry::getName, Comparator.nullsFirst(Comparator.naturalOrder()))
+            .thenComparing(Entry::getId);
+
+    private final Map<String, int[]> bookCopies = new HashMap<>();
+    private final Map<String, Entry> bookEntries = new HashMap<>();
+    private final TreeSet<Entry> booksByBorrows = new TreeSet<>(RANKING);
+    private final Map<String, Entry> userEntries = new HashMap<>();
+    private final TreeSet<Entry> usersByLoans = new TreeSet<>(RANKING);
+
+    private int totalBooks;
+    private int availableBooks;
+    private int activeUsers;
+    private Snapshot snapshot;
+
+    // The entity is read before taking the stats lock, so this never waits on a book
+    // or user monitor while holding it. Callers that have just changed the entity call this
+    // before letting go of its monitor, so that its updates are published in the order
+    // they happened.
+    void putBook(Book book) {
+        int[] copies;
+        Entry entry;
+        synchronized (book) {
+            copies = new int[]{book.getTotalCopies(), book.getAvailableCopies()};
+            entry = new Entry(book.getId(), book.getTitle(), book.getTotalBorrowCount());
+        }
+        synchronized (this) {
+            removeBook(book.getId());
+            bookCopies.put(book.getId(), copies);
+            totalBooks += copies[0];
+            availableBooks += copies[1];
+            bookEntries.put(book.getId(), entry);
+            booksByBorrows.add(entry);
+            snapshot = null;
+        }
+    }
+
+    synchronized void removeBook(String bookId) {
+        int[] copies = bookCopies.remove(bookId);
+        if (copies == null) return;
+        totalBooks -= copies[0];
+        availableBooks -= copies[1];
+        booksByBorrows.remove(bookEntries.remove(bookId));
+        snapshot = null;
+    }
+
+    void putUser(User user) {
+        Entry entry;
+        synchronized (user) {
+            entry = new Entry(user.getId(), user.getName(), user.getBorrowedBooks().size());
+        }
+        synchronized (this) {
+            removeUser(user.getId());
+            userEntries.put(user.getId(), entry);
+            usersByLoans.add(entry);
+            if (entry.count > 0) activeUsers++;
+            snapshot = null;
+        }
+    }
+
+    synchronized void removeUser(String userId) {
+        Entry entry = userEntries.remove(userId);
+        if (entry == null) return;
+        usersByLoans.remove(entry);
+        if (entry.count > 0) activeUsers--;
+        snapshot = null;
+    }
+
+    synchronized void clear() {
+        bookCopies.clear();
+        bookEntries.clear();
+        booksByBorrows.clear();
+        userEntries.clear();
+        usersByLoans.clear();
+        totalBooks = 0;
+        availableBooks = 0;
+        activeUsers = 0;
+        snapshot = null;
+    }
+
+    // Rebuilt only after a change, and then only the top entries are read
+    synchronized Snapshot snapshot() {
+        if (snapshot == null) {
+            snapshot = new Snapshot(totalBooks, availableBooks, userEntries.size(), activeUsers,
+                    top(booksByBorrows), top(usersByLoans));
+        }
+        return snapshot;
+    }
+
+    private static List<Entry> top(TreeSet<Entry> ranking) {
+        List<Entry> top = new ArrayList<>(TOP_COUNT);
+        for (Entry entry : ranking) {
+            if (top.size() == TOP_COUNT) break;
+            top.add(entry);
+        }
+        return Collections.unmodifiableList(top);
+    }
+}
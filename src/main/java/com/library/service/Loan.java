@@ -0,0 +1,23 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+// A borrow record together with the book it belongs to, as returned by the date-range
+// queries. The record is a copy taken when the query ran.
+public final class Loan {
+    private final Book book;
+    private final Book.BorrowRecord record;
+
+    Loan(Book book, Book.BorrowRecord record) {
+        this.book = book;
+        this.record = record;
+    }
+
+    public Book getBook() {
+        return book;
+    }
+
+    public Book.BorrowRecord getRecord() {
+        return record;
+    }
+}
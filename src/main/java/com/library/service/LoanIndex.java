@@ -0,0 +1,320 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Loans ordered by date, so "what was borrowed between X and Y" or "which loans from before Z are
+// still open" is a binary search plus the matching entries instead of a walk over every book.
+// Three columns: every loan by borrow date, returned loans by return date and open loans by
+// borrow date. Each entry is just the date and the book; the loan is looked up in the book's
+// short history when a query reads it. Dates come from the clock, so new entries almost always
+// go on the end of a column. Entries of returned, archived or removed loans are blanked and
+// swept out once they make up half a column.
+// Guarded by its own monitor, taken after the book monitors and never held while taking one.
+class LoanIndex {
+    // Entries copied out per turn of the monitor while resolving a query
+    private static final int CHUNK = 1024;
+
+    private final Column borrowed = new Column();
+    private final Column returned = new Column();
+    private final Column open = new Column();
+
+    // Replaces the contents with the loans of the books, e.g. after a load
+    void rebuild(Collection<Book> books) {
+        Column newBorrowed = new Column();
+        Column newReturned = new Column();
+        Column newOpen = new Column();
+        for (Book book : books) {
+            synchronized (book) {
+                for (int i = 0; i < book.getLoanCount(); i++) {
+                    newBorrowed.append(book.getLoanBorrowDate(i), book);
+                    if (book.isLoanReturned(i)) {
+                        newReturned.append(book.getLoanReturnDate(i), book);
+                    } else {
+                        newOpen.append(book.getLoanBorrowDate(i), book);
+                    }
+                }
+            }
+        }
+        newBorrowed.sort();
+        newReturned.sort();
+        newOpen.sort();
+        synchronized (this) {
+            borrowed.replaceWith(newBorrowed);
+            returned.replaceWith(newReturned);
+            open.replaceWith(newOpen);
+        }
+    }
+
+    synchronized void clear() {
+        borrowed.replaceWith(new Column());
+        returned.replaceWith(new Column());
+        open.replaceWith(new Column());
+    }
+
+    // Callers hold the book's monitor
+    synchronized void borrowed(Book book, long borrowDate) {
+        borrowed.add(borrowDate, book);
+        open.add(borrowDate, book);
+    }
+
+    // Callers hold the book's monitor
+    synchronized void returned(Book book, long borrowDate, long returnDate) {
+        open.remove(borrowDate, book);
+        returned.add(returnDate, book);
+    }
+
+    // Callers hold the book's monitor; for records leaving the history for the archive
+    synchronized void archived(Book book, List<Book.BorrowRecord> records) {
+        for (Book.BorrowRecord record : records) {
+            borrowed.remove(record.getBorrowDate(), book);
+            returned.remove(record.getReturnDate(), book);
+        }
+    }
+
+    void addBook(Book book) {
+        synchronized (book) {
+            synchronized (this) {
+                for (int i = 0; i < book.getLoanCount(); i++) {
+                    borrowed.add(book.getLoanBorrowDate(i), book);
+                    if (book.isLoanReturned(i)) {
+                        returned.add(book.getLoanReturnDate(i), book);
+                    } else {
+                        open.add(book.getLoanBorrowDate(i), book);
+                    }
+                }
+            }
+        }
+    }
+
+    void removeBook(Book book) {
+        synchronized (book) {
+            synchronized (this) {
+                for (int i = 0; i < book.getLoanCount(); i++) {
+                    borrowed.remove(book.getLoanBorrowDate(i), book);
+                    if (book.isLoanReturned(i)) {
+                        returned.remove(book.getLoanReturnDate(i), book);
+                    } else {
+                        open.remove(book.getLoanBorrowDate(i), book);
+                    }
+                }
+            }
+        }
+    }
+
+    // Loans borrowed in [from, to), oldest first, at most limit. Books the predicate rejects
+    // (no longer in the catalog) are skipped.
+    List<Loan> borrowedBetween(long from, long to, int limit, Predicate<Book> current) {
+        return resolve(borrowed, from, to, limit, current, false, false);
+    }
+
+    // Loans returned in [from, to), earliest return first
+    List<Loan> returnedBetween(long from, long to, int limit, Predicate<Book> current) {
+        return resolve(returned, from, to, limit, current, true, true);
+    }
+
+    // Loans still open that were borrowed in [from, to), oldest first
+    List<Loan> openBetween(long from, long to, int limit, Predicate<Book> current) {
+        return resolve(open, from, to, limit, current, true, false);
+    }
+
+    // The entries are copied out under this monitor, a chunk at a time, then matched to their
+    // loans under each book's monitor. A loan returned or archived in between, or of a book no
+    // longer current, is left out, and the scan goes on until limit loans are found or the
+    // range ends. A book can have several loans with the same date; its j-th entry with a date
+    // is matched to its j-th loan with that date, as both keep history order.
+    private List<Loan> resolve(Column column, long from, long to, int limit, Predicate<Book> current,
+                               boolean checkReturned, boolean returnedLoans) {
+        List<Loan> loans = new ArrayList<>();
+        // Entries already taken per book with the date the scan has reached
+        long reached = from;
+        Map<Book, Integer> taken = new HashMap<>();
+        while (loans.size() < limit) {
+            int wanted = Math.min(limit - loans.size(), CHUNK);
+            long[] dates = new long[wanted];
+            Book[] books = new Book[wanted];
+            int[] occurrences = new int[wanted];
+            int count = 0;
+            boolean more;
+            synchronized (this) {
+                int end = column.lowerBound(to);
+                Map<Book, Integer> skip = new HashMap<>(taken);
+                int i = column.lowerBound(reached);
+                for (; i < end && count < wanted; i++) {
+                    Book book = column.books[i];
+                    if (book == null) continue;
+                    long date = column.dates[i];
+                    if (date == reached && skip.merge(book, -1, Integer::sum) >= 0) continue;
+                    if (date != reached) {
+                        reached = date;
+                        taken.clear();
+                        skip.clear();
+                    }
+                    int occurrence = taken.merge(book, 1, Integer::sum) - 1;
+                    dates[count] = date;
+                    books[count] = book;
+                    occurrences[count++] = occurrence;
+                }
+                more = i < end;
+            }
+            for (int i = 0; i < count; i++) {
+                Book book = books[i];
+                if (!current.test(book)) continue;
+                synchronized (book) {
+                    int seen = 0;
+                    for (int j = 0; j < book.getLoanCount(); j++) {
+                        if (checkReturned && book.isLoanReturned(j) != returnedLoans) continue;
+                        long date = returnedLoans ? book.getLoanReturnDate(j) : book.getLoanBorrowDate(j);
+                        if (date == dates[i] && seen++ == occurrences[i]) {
+                            loans.add(new Loan(book, book.getLoan(j)));
+                            break;
+                        }
+                    }
+                }
+            }
+            if (!more) break;
+        }
+        return loans;
+    }
+
+    // Parallel arrays sorted by date. Removed entries have a null book until the next sweep.
+    private static final class Column {
+        private long[] dates = new long[0];
+        private Book[] books = new Book[0];
+        private int size;
+        private int blanks;
+
+        // Unsorted, for rebuilding; sort() follows
+        void append(long date, Book book) {
+            ensureCapacity();
+            dates[size] = date;
+            books[size++] = book;
+        }
+
+        // After the entries with the same date, so equal dates keep their arrival order
+        void add(long date, Book book) {
+            ensureCapacity();
+            int at = size > 0 && dates[size - 1] > date ? upperBound(date) : size;
+            System.arraycopy(dates, at, dates, at + 1, size - at);
+            System.arraycopy(books, at, books, at + 1, size - at);
+            dates[at] = date;
+            books[at] = book;
+            size++;
+        }
+
+        void remove(long date, Book book) {
+            for (int i = lowerBound(date); i < size && dates[i] == date; i++) {
+                if (books[i] == book) {
+                    books[i] = null;
+                    if (++blanks > size / 2) {
+                        sweep();
+                    }
+                    return;
+                }
+            }
+        }
+
+        // First position whose date is >= date
+        int lowerBound(long date) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (dates[mid] < date) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        // First position whose date is > date
+        int upperBound(long date) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (dates[mid] <= date) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        void replaceWith(Column other) {
+            dates = other.dates;
+            books = other.books;
+            size = other.size;
+            blanks = other.blanks;
+        }
+
+        // Stable, so each book's loans stay in history order within a date. Also gives back
+        // the spare room left by appending.
+        void sort() {
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = dates[i - 1] <= dates[i];
+            }
+            if (sorted) {
+                dates = Arrays.copyOf(dates, size);
+                books = Arrays.copyOf(books, size);
+                return;
+            }
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            mergeSort(order, new int[size], 0, size);
+            long[] sortedDates = new long[size];
+            Book[] sortedBooks = new Book[size];
+            for (int i = 0; i < size; i++) {
+                sortedDates[i] = dates[order[i]];
+                sortedBooks[i] = books[order[i]];
+            }
+            dates = sortedDates;
+            books = sortedBooks;
+        }
+
+        private void mergeSort(int[] order, int[] buffer, int from, int to) {
+            if (to - from < 2) return;
+            int mid = (from + to) >>> 1;
+            mergeSort(order, buffer, from, mid);
+            mergeSort(order, buffer, mid, to);
+            if (dates[order[mid - 1]] <= dates[order[mid]]) return;
+            System.arraycopy(order, from, buffer, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < mid && dates[buffer[left]] <= dates[buffer[right]])) {
+                    order[i] = buffer[left++];
+                } else {
+                    order[i] = buffer[right++];
+                }
+            }
+        }
+
+        private void sweep() {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (books[i] == null) continue;
+                dates[kept] = dates[i];
+                books[kept++] = books[i];
+            }
+            Arrays.fill(books, kept, size, null);
+            size = kept;
+            blanks = 0;
+        }
+
+        private void ensureCapacity() {
+            if (size == dates.length) {
+                int capacity = Math.max(16, size + (size >> 1));
+                dates = Arrays.copyOf(dates, capacity);
+                books = Arrays.copyOf(books, capacity);
+            }
+        }
+    }
+}
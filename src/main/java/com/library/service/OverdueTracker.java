@@ -0,0 +1,282 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+// Open loans waiting to fall due, in a hierarchical timer wheel: four levels of 64 slots, where
+// a slot of level 0 spans one tick, a slot of level 1 spans 64 ticks and so on, covering about
+// 30 years at one-minute ticks; a loan due later waits in the furthest slot and goes back in
+// when that comes round. A loan goes into the coarsest slot that still tells it apart
+// from now and moves one level down each time the clock reaches its slot, so scheduling,
+// cancelling and firing a loan cost O(1) however many loans are out. Loans past their due
+// date leave the wheel for the overdue list, in the order they fell due.
+// A loan is a book and a borrower; a user has at most one open loan of a book. Guarded by its
+// own monitor, taken after the book monitors and never held while taking one.
+class OverdueTracker {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+    private static final long MAX_DELAY = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    private final long tickMillis;
+    // Doubly linked lists, LEVELS * SLOTS heads
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    // Every loan in the wheel or the overdue list, by book id and user id
+    private final Map<String, Timer> timers = new HashMap<>();
+    private Timer overdueHead;
+    private Timer overdueTail;
+    private int overdueCount;
+    // The next tick to run
+    private long tick;
+
+    OverdueTracker(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    // One pending or overdue loan; linked into a slot while pending, into the overdue
+    // list afterwards
+    private static final class Timer {
+        final Book book;
+        final String userId;
+        final long dueDate;
+        final long deadline;
+        int slot = -1;
+        Timer prev;
+        Timer next;
+
+        Timer(Book book, String userId, long dueDate, long deadline) {
+            this.book = book;
+            this.userId = userId;
+            this.dueDate = dueDate;
+            this.deadline = deadline;
+        }
+    }
+
+    // Replaces the contents with the open loans of the books. Loans already past due go
+    // straight to the overdue list, oldest due date first.
+    void rebuild(Collection<Book> books, long now) {
+        List<Timer> open = new ArrayList<>();
+        for (Book book : books) {
+            synchronized (book) {
+                open.addAll(openLoans(book));
+            }
+        }
+        open.sort((a, b) -> Long.compare(a.dueDate, b.dueDate));
+        synchronized (this) {
+            reset(now);
+            for (Timer timer : open) {
+                schedule(timer);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        reset(System.currentTimeMillis());
+    }
+
+    // Callers hold the book's monitor
+    synchronized void borrowed(Book book, String userId, long dueDate) {
+        schedule(new Timer(book, userId, dueDate, deadline(dueDate)));
+    }
+
+    // Callers hold the book's monitor
+    synchronized void returned(Book book, String userId) {
+        cancel(key(book, userId), book);
+    }
+
+    void addBook(Book book) {
+        synchronized (book) {
+            synchronized (this) {
+                for (Timer timer : openLoans(book)) {
+                    schedule(timer);
+                }
+            }
+        }
+    }
+
+    void removeBook(Book book) {
+        synchronized (book) {
+            synchronized (this) {
+                for (int i = 0; i < book.getLoanCount(); i++) {
+                    if (!book.isLoanReturned(i)) {
+                        cancel(key(book, book.getLoanUserId(i)), book);
+                    }
+                }
+            }
+        }
+    }
+
+    // Runs the clock up to now and returns the books whose loans have just fallen due
+    synchronized List<Book> advance(long now) {
+        List<Book> fallen = new ArrayList<>();
+        long target = now / tickMillis;
+        while (tick <= target) {
+            int index = (int) (tick & (SLOTS - 1));
+            // At the start of each span of a level, the next slot of the level above moves down
+            for (int level = 1; level < LEVELS && index == 0; level++) {
+                index = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                cascade(level * SLOTS + index);
+            }
+            int slot = (int) (tick & (SLOTS - 1));
+            Timer timer = detach(slot);
+            while (timer != null) {
+                Timer next = timer.next;
+                timer.prev = null;
+                timer.next = null;
+                timer.slot = -1;
+                if (timer.deadline > tick) {
+                    // Due beyond the span of the wheel when it went in, so it only came round
+                    // to the furthest slot; it goes back in for the rest of its wait
+                    insert(timer);
+                } else {
+                    appendOverdue(timer);
+                    fallen.add(timer.book);
+                }
+                timer = next;
+            }
+            tick++;
+        }
+        return fallen;
+    }
+
+    synchronized int overdueCount() {
+        return overdueCount;
+    }
+
+    // Up to limit overdue loans in the order they fell due. As with LoanIndex, the loans are
+    // copied out under this monitor and read under each book's monitor afterwards; books the
+    // predicate rejects (no longer in the catalog) and loans returned in between are left out.
+    List<Loan> overdue(int limit, Predicate<Book> current) {
+        List<Timer> found = new ArrayList<>();
+        synchronized (this) {
+            for (Timer timer = overdueHead; timer != null && found.size() < limit; timer = timer.next) {
+                found.add(timer);
+            }
+        }
+        List<Loan> loans = new ArrayList<>(found.size());
+        for (Timer timer : found) {
+            if (!current.test(timer.book)) continue;
+            synchronized (timer.book) {
+                int index = timer.book.findActiveLoan(timer.userId);
+                if (index != -1) {
+                    loans.add(new Loan(timer.book, timer.book.getLoan(index)));
+                }
+            }
+        }
+        return loans;
+    }
+
+    private void reset(long now) {
+        Arrays.fill(slots, null);
+        timers.clear();
+        overdueHead = null;
+        overdueTail = null;
+        overdueCount = 0;
+        tick = now / tickMillis;
+    }
+
+    // Callers hold the book's monitor
+    private List<Timer> openLoans(Book book) {
+        List<Timer> open = new ArrayList<>();
+        for (int i = 0; i < book.getLoanCount(); i++) {
+            if (book.isLoanReturned(i)) continue;
+            long dueDate = book.getLoanDueDate(i);
+            open.add(new Timer(book, book.getLoanUserId(i), dueDate, deadline(dueDate)));
+        }
+        return open;
+    }
+
+    // The first tick that starts after the due date
+    private long deadline(long dueDate) {
+        return Math.floorDiv(dueDate, tickMillis) + 1;
+    }
+
+    // Data from elsewhere may hold two open loans of a book for one user; the oldest is kept,
+    // as that is the one a return closes
+    private void schedule(Timer timer) {
+        String key = key(timer.book, timer.userId);
+        Timer existing = timers.get(key);
+        if (existing != null && existing.book == timer.book && existing.dueDate <= timer.dueDate) return;
+        cancel(key, timer.book);
+        timers.put(key, timer);
+        if (timer.deadline < tick) {
+            appendOverdue(timer);
+        } else {
+            insert(timer);
+        }
+    }
+
+    // Into the slot for its deadline, counted from the current tick
+    private void insert(Timer timer) {
+        long deadline = Math.min(timer.deadline, tick + MAX_DELAY);
+        long delay = deadline - tick;
+        int level = 0;
+        while (level < LEVELS - 1 && delay >= 1L << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int slot = level * SLOTS + (int) ((deadline >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null) timer.next.prev = timer;
+        slots[slot] = timer;
+    }
+
+    // Everything in the slot is now due within the span of the level below
+    private void cascade(int slot) {
+        Timer timer = detach(slot);
+        while (timer != null) {
+            Timer next = timer.next;
+            insert(timer);
+            timer = next;
+        }
+    }
+
+    // Empties the slot and returns its former list
+    private Timer detach(int slot) {
+        Timer head = slots[slot];
+        slots[slot] = null;
+        return head;
+    }
+
+    private void appendOverdue(Timer timer) {
+        timer.slot = -1;
+        timer.prev = overdueTail;
+        timer.next = null;
+        if (overdueTail != null) overdueTail.next = timer;
+        else overdueHead = timer;
+        overdueTail = timer;
+        overdueCount++;
+    }
+
+    // Drops the loan from the wheel or the overdue list. Only the given book object's loan
+    // is dropped, so a book replaced by another with the same id leaves the new one alone.
+    private void cancel(String key, Book book) {
+        Timer timer = timers.get(key);
+        if (timer == null || timer.book != book) return;
+        timers.remove(key);
+        if (timer.slot >= 0) {
+            if (timer.prev != null) timer.prev.next = timer.next;
+            else slots[timer.slot] = timer.next;
+        } else {
+            if (timer.prev != null) timer.prev.next = timer.next;
+            else overdueHead = timer.next;
+            if (timer.next == null) overdueTail = timer.prev;
+            overdueCount--;
+        }
+        if (timer.next != null) timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+
+    private static String key(Book book, String userId) {
+        return book.getId() + '\n' + userId;
+    }
+}
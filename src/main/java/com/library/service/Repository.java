@@ -0,0 +1,103 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Where DataService keeps the library between runs. DataService loads everything once at
+// start, hands over each batch of changes from its background writer, and asks for a full
+// checkpoint now and then. FileRepository keeps a snapshot plus journal in the data
+// directory, SqlRepository an embedded H2 database.
+public interface Repository extends Closeable {
+    // Consistent access to what DataService holds in memory, for writing full images
+    interface Catalog {
+        // Encodes the catalog while structural changes are held off
+        Map<String, byte[]> encode(SnapshotFormat format) throws IOException;
+
+        // Runs the action while structural changes are held off
+        void read(CatalogReader reader) throws IOException;
+    }
+
+    interface CatalogReader {
+        void read(Collection<Book> books, Collection<User> users) throws IOException;
+    }
+
+    // A catalog over plain collections, for tools that move data between stores without
+    // starting a DataService
+    static Catalog catalogOf(Collection<Book> books, Collection<User> users) {
+        return new Catalog() {
+            @Override
+            public Map<String, byte[]> encode(SnapshotFormat format) throws IOException {
+                return format.encode(books, users);
+            }
+
+            @Override
+            public void read(CatalogReader reader) throws IOException {
+                reader.read(books, users);
+            }
+        };
+    }
+
+    // False until the first checkpoint, so DataService knows to import the JSON files
+    boolean exists();
+
+    // Streams what is stored as a sequence of puts, followed by deletes and later puts for
+    // stores that log changes. Keeps going past damage where it can, then reports it.
+    void load(Consumer<JournalEntry> entries) throws IOException;
+
+    // Stores one batch of puts and deletes as a unit. Called on DataService's writer thread,
+    // which is the only writer; entities are read under their own monitors.
+    // Returns the number of bytes written, where known.
+    long write(List<JournalEntry> changes, Catalog catalog) throws IOException;
+
+    // Writes a full image of the catalog and drops whatever write() had to keep around to
+    // recover it. Returns the number of bytes written, where known.
+    long checkpoint(Catalog catalog) throws IOException;
+
+    // Changes written since the last checkpoint that a checkpoint would compact; stores
+    // that apply changes in place always report 0
+    int pendingChanges();
+
+    // Paged and indexed reads of what is stored, for tools that do not start a DataService.
+    // The defaults replay a full load; SqlRepository answers them from its indexes.
+    default List<Book> findBooks(int offset, int limit) throws IOException {
+        Map<String, Book> books = new LinkedHashMap<>();
+        load(entry -> {
+            if (JournalEntry.PUT_BOOK.equals(entry.getOp())) books.put(entry.getBook().getId(), entry.getBook());
+            else if (JournalEntry.DELETE_BOOK.equals(entry.getOp())) books.remove(entry.getId());
+        });
+        List<Book> page = new ArrayList<>();
+        int index = 0;
+        for (Book book : books.values()) {
+            if (index++ >= offset && page.size() < limit) page.add(book);
+        }
+        return page;
+    }
+
+    default Book findBookByIsbn(String isbn) throws IOException {
+        for (Book book : findBooks(0, Integer.MAX_VALUE)) {
+            if (isbn.equals(book.getIsbn())) return book;
+        }
+        return null;
+    }
+
+    default User findUserByEmail(String email) throws IOException {
+        Map<String, User> users = new LinkedHashMap<>();
+        load(entry -> {
+            if (JournalEntry.PUT_USER.equals(entry.getOp())) users.put(entry.getUser().getId(), entry.getUser());
+            else if (JournalEntry.DELETE_USER.equals(entry.getOp())) users.remove(entry.getId());
+        });
+        for (User user : users.values()) {
+            if (email.equals(user.getEmail())) return user;
+        }
+        return null;
+    }
+}
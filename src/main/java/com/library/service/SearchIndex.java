@@ -0,0 +1,221 @@
+package com.library.service;
+
+import com.library.model.Book;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+// Inverted trigram index over book title, author and ISBN. A substring query is answered by
+// intersecting the posting sets of its trigrams and confirming the few candidates left,
+// instead of lowercasing and scanning every book.
+class SearchIndex {
+    private static final int GRAM = 3;
+    private static final int TITLE = 0;
+    private static final int AUTHOR = 1;
+    private static final int ISBN = 2;
+
+    private final Map<String, Set<String>> postings = new HashMap<>();
+    // Lowercased fields per book, needed to unindex and to confirm candidates
+    private final Map<String, String[]> fieldsById = new LinkedHashMap<>();
+
+    public void put(String id, String title, String author, String isbn) {
+        remove(id);
+        String[] fields = {normalize(title), normalize(author), normalize(isbn)};
+        fieldsById.put(id, fields);
+        for (String gram : gramsOf(fields)) {
+            postings.computeIfAbsent(gram, k -> new HashSet<>()).add(id);
+        }
+    }
+
+    // Indexes many books at once, e.g. after loading or importing. The books are split into
+    // chunks whose trigrams are computed in parallel and sorted by the shard (trigram hash)
+    // they belong to; each shard's postings are then filled by one worker from its own part
+    // of every chunk, so no locking is needed and each trigram is looked at once. With a
+    // single shard the postings are filled as the trigrams are computed.
+    public void putAll(Collection<Book> books) {
+        // The last of several books with one id wins, as in the catalog
+        Map<String, Book> byId = new LinkedHashMap<>();
+        for (Book book : books) {
+            byId.put(book.getId(), book);
+        }
+        Book[] batch = byId.values().toArray(new Book[0]);
+        for (Book book : batch) {
+            remove(book.getId());
+        }
+        String[][] fields = new String[batch.length][];
+        int shards = ForkJoinPool.getCommonPoolParallelism() > 1 ? ForkJoinPool.getCommonPoolParallelism() * 4 : 1;
+        // By chunk, then by shard
+        GramList[][] chunks = new GramList[shards][shards];
+        IntStream.range(0, shards).parallel().forEach(chunk -> {
+            GramList[] own = chunks[chunk];
+            for (int shard = 0; shard < shards; shard++) {
+                own[shard] = new GramList();
+            }
+            int end = (int) ((long) batch.length * (chunk + 1) / shards);
+            for (int i = (int) ((long) batch.length * chunk / shards); i < end; i++) {
+                Book book = batch[i];
+                fields[i] = new String[]{normalize(book.getTitle()), normalize(book.getAuthor()), normalize(book.getIsbn())};
+                for (String gram : gramsOf(fields[i])) {
+                    if (shards == 1) {
+                        postings.computeIfAbsent(gram, k -> new HashSet<>()).add(book.getId());
+                    } else {
+                        own[Math.floorMod(gram.hashCode(), shards)].add(gram, i);
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < batch.length; i++) {
+            fieldsById.put(batch[i].getId(), fields[i]);
+        }
+        if (shards == 1) return;
+
+        List<Map<String, Set<String>>> parts = new ArrayList<>(shards);
+        for (int s = 0; s < shards; s++) {
+            parts.add(new HashMap<>());
+        }
+        IntStream.range(0, shards).parallel().forEach(shard -> {
+            Map<String, Set<String>> part = parts.get(shard);
+            for (GramList[] chunk : chunks) {
+                GramList list = chunk[shard];
+                for (int j = 0; j < list.size; j++) {
+                    part.computeIfAbsent(list.grams[j], k -> new HashSet<>()).add(batch[list.books[j]].getId());
+                }
+            }
+        });
+        for (Map<String, Set<String>> part : parts) {
+            part.forEach((gram, ids) -> postings.merge(gram, ids, (existing, added) -> {
+                existing.addAll(added);
+                return existing;
+            }));
+        }
+    }
+
+    // Trigrams with the position in the batch of the book each came from
+    private static final class GramList {
+        String[] grams = new String[16];
+        int[] books = new int[16];
+        int size;
+
+        void add(String gram, int book) {
+            if (size == grams.length) {
+                grams = Arrays.copyOf(grams, 2 * size);
+                books = Arrays.copyOf(books, 2 * size);
+            }
+            grams[size] = gram;
+            books[size] = book;
+            size++;
+        }
+    }
+
+    public void remove(String id) {
+        String[] fields = fieldsById.remove(id);
+        if (fields == null) return;
+        for (String gram : gramsOf(fields)) {
+            Set<String> ids = postings.get(gram);
+            if (ids != null) {
+                ids.remove(id);
+                if (ids.isEmpty()) postings.remove(gram);
+            }
+        }
+    }
+
+    public void clear() {
+        postings.clear();
+        fieldsById.clear();
+    }
+
+    // Ids of books whose title, author or ISBN contains the query, ignoring case
+    public Set<String> search(String query) {
+        String q = normalize(query);
+        if (q.isEmpty()) {
+            return new HashSet<>(fieldsById.keySet());
+        }
+        Set<String> result = new HashSet<>();
+        for (String id : candidates(q)) {
+            if (score(fieldsById.get(id), q) > 0) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    // Best matches first: title hits outrank author hits, which outrank ISBN hits,
+    // and prefix or word-start matches outrank matches in the middle of a word
+    public List<String> searchRanked(String query, int limit) {
+        String q = normalize(query);
+        if (q.isEmpty() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        Comparator<Map.Entry<String, Integer>> order = Map.Entry.<String, Integer>comparingByValue()
+                .thenComparing(e -> -fieldsById.get(e.getKey())[TITLE].length());
+        PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(order);
+        for (String id : candidates(q)) {
+            int score = score(fieldsById.get(id), q);
+            if (score == 0) continue;
+            top.add(new AbstractMap.SimpleEntry<>(id, score));
+            if (top.size() > limit) top.poll();
+        }
+        List<String> result = new ArrayList<>(top.size());
+        while (!top.isEmpty()) {
+            result.add(top.poll().getKey());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    private Collection<String> candidates(String q) {
+        if (q.length() < GRAM) {
+            // Too short to use the index; these queries match a large share of the catalog anyway
+            return fieldsById.keySet();
+        }
+        List<Set<String>> lists = new ArrayList<>();
+        for (String gram : gramsOf(q)) {
+            Set<String> ids = postings.get(gram);
+            if (ids == null) return Collections.emptySet();
+            lists.add(ids);
+        }
+        lists.sort(Comparator.comparingInt(Set::size));
+        Set<String> result = new HashSet<>(lists.get(0));
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.retainAll(lists.get(i));
+        }
+        return result;
+    }
+
+    private static int score(String[] fields, String q) {
+        return fieldScore(fields[TITLE], q, 100) + fieldScore(fields[AUTHOR], q, 40) + fieldScore(fields[ISBN], q, 10);
+    }
+
+    private static int fieldScore(String text, String q, int weight) {
+        int at = text.indexOf(q);
+        if (at < 0) return 0;
+        if (at == 0) return text.length() == q.length() ? weight * 4 : weight * 3;
+        if (!Character.isLetterOrDigit(text.charAt(at - 1))) return weight * 2;
+        return weight;
+    }
+
+    private static Set<String> gramsOf(String[] fields) {
+        Set<String> grams = new HashSet<>();
+        for (String field : fields) {
+            addGrams(field, grams);
+        }
+        return grams;
+    }
+
+    private static Set<String> gramsOf(String text) {
+        Set<String> grams = new HashSet<>();
+        addGrams(text, grams);
+        return grams;
+    }
+
+    private static void addGrams(String text, Set<String> grams) {
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM));
+        }
+    }
+
+    private static String normalize(String text) {
+        return text == null ? "" : text.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,73 @@
+package com.library.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Maps a secondary key (ISBN, email) to an entity. Keys are remembered per id so an
+// entity whose key was edited in place can still be unindexed under its old key.
+// Keys need not be unique, as imported data may repeat an ISBN or email: the entity that
+// got the key first is found, and when it goes the next one with that key takes its place.
+class SecondaryIndex<T> {
+    private final Map<String, T> byKey = new HashMap<>();
+    private final Map<String, String> idByKey = new HashMap<>();
+    private final Map<String, String> keyById = new HashMap<>();
+    // The other entities with a key, by key, in the order they got it; only for repeated keys
+    private final Map<String, LinkedHashMap<String, T>> sharedKeys = new HashMap<>();
+
+    public void put(String id, String key, T value) {
+        if (key != null && key.equals(keyById.get(id))) {
+            // Same key as before, so the entity keeps its place among those sharing it
+            if (id.equals(idByKey.get(key))) {
+                byKey.put(key, value);
+            } else {
+                sharedKeys.get(key).put(id, value);
+            }
+            return;
+        }
+        remove(id);
+        if (key == null || key.isEmpty()) return;
+        keyById.put(id, key);
+        if (byKey.containsKey(key)) {
+            sharedKeys.computeIfAbsent(key, k -> new LinkedHashMap<>()).put(id, value);
+        } else {
+            byKey.put(key, value);
+            idByKey.put(key, id);
+        }
+    }
+
+    public void remove(String id) {
+        String oldKey = keyById.remove(id);
+        if (oldKey == null) return;
+        LinkedHashMap<String, T> shared = sharedKeys.get(oldKey);
+        if (id.equals(idByKey.get(oldKey))) {
+            if (shared == null) {
+                byKey.remove(oldKey);
+                idByKey.remove(oldKey);
+                return;
+            }
+            Iterator<Map.Entry<String, T>> next = shared.entrySet().iterator();
+            Map.Entry<String, T> entry = next.next();
+            byKey.put(oldKey, entry.getValue());
+            idByKey.put(oldKey, entry.getKey());
+            next.remove();
+        } else if (shared != null) {
+            shared.remove(id);
+        }
+        if (shared != null && shared.isEmpty()) {
+            sharedKeys.remove(oldKey);
+        }
+    }
+
+    public T get(String key) {
+        return key == null ? null : byKey.get(key);
+    }
+
+    public void clear() {
+        byKey.clear();
+        idByKey.clear();
+        keyById.clear();
+        sharedKeys.clear();
+    }
+}
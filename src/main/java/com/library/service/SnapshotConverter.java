@@ -0,0 +1,46 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Converts a library snapshot between formats, e.g. to inspect the binary snapshot as JSON:
+//   java -cp lib-management.jar com.library.service.SnapshotConverter binary data/library.bin json data/books.json data/users.json
+public class SnapshotConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 4) {
+            System.err.println("Usage: SnapshotConverter <json books users | binary file> <json books users | binary file>");
+            System.exit(1);
+        }
+        int[] next = {0};
+        SnapshotFormat from = parse(args, next);
+        SnapshotFormat to = parse(args, next);
+
+        List<Book> books = new ArrayList<>();
+        List<User> users = new ArrayList<>();
+        long start = System.nanoTime();
+        from.load(books::add, users::add);
+        long loaded = System.nanoTime();
+        if (!DataService.writeFiles(to.encode(books, users))) {
+            System.exit(1);
+        }
+        long saved = System.nanoTime();
+
+        System.out.println("Converted " + books.size() + " books and " + users.size() + " users"
+                + " (load " + (loaded - start) / 1_000_000 + " ms, save " + (saved - loaded) / 1_000_000 + " ms)");
+    }
+
+    private static SnapshotFormat parse(String[] args, int[] next) {
+        String kind = args[next[0]++];
+        if ("json".equals(kind)) {
+            return new JsonSnapshotFormat(args[next[0]++], args[next[0]++]);
+        }
+        if ("binary".equals(kind)) {
+            return new BinarySnapshotFormat(args[next[0]++]);
+        }
+        throw new IllegalArgumentException("Unknown format " + kind);
+    }
+}
@@ -0,0 +1,20 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// On-disk representation of a full snapshot of the library
+public interface SnapshotFormat {
+    boolean exists();
+
+    void load(Consumer<Book> books, Consumer<User> users) throws IOException;
+
+    // Serializes in memory, file name to contents. DataService calls this while holding
+    // its lock and writes the files afterwards.
+    Map<String, byte[]> encode(Collection<Book> books, Collection<User> users) throws IOException;
+}
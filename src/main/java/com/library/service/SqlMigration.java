@@ -0,0 +1,78 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Copies a data directory's files into the embedded database next to them, after which the
+// application can be started with -Dlibrary.repository=sql:
+//   java -cp lib-management.jar com.library.service.SqlMigration data
+// Reads library.bin and the journal when there is a snapshot, otherwise books.json and
+// users.json. An existing database is only overwritten with --replace.
+public class SqlMigration {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SqlMigration <data dir> [--replace]");
+            System.exit(1);
+        }
+        File dataDir = new File(args[0]);
+        boolean replace = args.length > 1 && "--replace".equals(args[1]);
+
+        FileRepository source = DataService.fileRepository(dataDir);
+        SnapshotFormat sourceFormat = source.exists() ? null : DataService.jsonFormat(dataDir);
+
+        Map<String, Book> books = new LinkedHashMap<>();
+        Map<String, User> users = new LinkedHashMap<>();
+        long start = System.nanoTime();
+        if (sourceFormat != null) {
+            sourceFormat.load(book -> books.put(book.getId(), book), user -> users.put(user.getId(), user));
+        }
+        source.load(entry -> {
+            switch (entry.getOp()) {
+                case JournalEntry.PUT_BOOK: books.put(entry.getBook().getId(), entry.getBook()); break;
+                case JournalEntry.DELETE_BOOK: books.remove(entry.getId()); break;
+                case JournalEntry.PUT_USER: users.put(entry.getUser().getId(), entry.getUser()); break;
+                case JournalEntry.DELETE_USER: users.remove(entry.getId()); break;
+            }
+        });
+        source.close();
+        long loaded = System.nanoTime();
+
+        try (SqlRepository target = new SqlRepository(dataDir)) {
+            if (target.exists() && !replace) {
+                System.err.println("The database in " + dataDir + " already holds a library; pass --replace to overwrite it");
+                System.exit(1);
+            }
+            target.checkpoint(Repository.catalogOf(books.values(), users.values()));
+            long saved = System.nanoTime();
+
+            // Read everything back to check nothing was dropped on the way
+            List<Book> storedBooks = new ArrayList<>();
+            List<User> storedUsers = new ArrayList<>();
+            int[] loans = {0, 0};
+            target.load(entry -> {
+                if (entry.getBook() != null) storedBooks.add(entry.getBook());
+                if (entry.getUser() != null) storedUsers.add(entry.getUser());
+            });
+            books.values().forEach(book -> loans[0] += book.getLoanCount());
+            storedBooks.forEach(book -> loans[1] += book.getLoanCount());
+            boolean complete = storedBooks.size() == books.size() && storedUsers.size() == users.size()
+                    && loans[0] == loans[1];
+
+            System.out.println("Migrated " + books.size() + " books, " + loans[0] + " loans and " + users.size()
+                    + " users from " + (sourceFormat != null ? "the JSON files" : "library.bin")
+                    + " (load " + (loaded - start) / 1_000_000 + " ms, store " + (saved - loaded) / 1_000_000 + " ms)");
+            if (!complete) {
+                System.err.println("Read back " + storedBooks.size() + " books, " + loans[1] + " loans and "
+                        + storedUsers.size() + " users; the database is incomplete");
+                System.exit(1);
+            }
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.library.service;
+
+import com.library.model.Book;
+import com.library.model.User;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+// Embedded H2 database in the data directory (library.mv.db), opened in file mode only so
+// nothing listens on the network. Changes are applied row by row: a changed book rewrites its
+// own row, nothing else, so there is no journal to compact and checkpoints are only needed for
+// bulk loads. Books and users come back in the order they were first stored.
+//   books(seq, id, title, author, isbn, total_copies, archived_borrow_count, loans)
+//   users(seq, id, name, email, password)
+//   user_books(user_id, pos, book_id)
+// with unique indexes on the ids and plain ones on books.isbn and users.email. A book's loan
+// history is one binary column rather than a row per loan: it is only ever read and written
+// whole, and indexing millions of loan rows made bulk loads several times slower.
+public class SqlRepository implements Repository {
+    private static final String DATABASE_NAME = "library";
+    private static final int SCHEMA_VERSION = 1;
+    // Lead the loans column of rows that carry due dates, and due dates and holds; a loan
+    // count is never negative
+    private static final int DUE_DATES = -2;
+    private static final int DUE_DATES_AND_HOLDS = -3;
+    private static final int BATCH_SIZE = 5000;
+
+    private static final String[] SCHEMA = {
+        "CREATE TABLE IF NOT EXISTS library_meta (name VARCHAR PRIMARY KEY, setting VARCHAR)",
+        "CREATE TABLE IF NOT EXISTS books (seq BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,"
+            + " id VARCHAR NOT NULL UNIQUE, title VARCHAR, author VARCHAR, isbn VARCHAR,"
+            + " total_copies INT NOT NULL, archived_borrow_count INT NOT NULL, loans VARBINARY NOT NULL)",
+        "CREATE INDEX IF NOT EXISTS books_isbn ON books (isbn)",
+        "CREATE TABLE IF NOT EXISTS users (seq BIGINT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY,"
+            + " id VARCHAR NOT NULL UNIQUE, name VARCHAR, email VARCHAR, password VARCHAR)",
+        "CREATE INDEX IF NOT EXISTS users_email ON users (email)",
+        "CREATE TABLE IF NOT EXISTS user_books (user_id VARCHAR NOT NULL, pos INT NOT NULL,"
+            + " book_id VARCHAR NOT NULL, PRIMARY KEY (user_id, pos))"
+    };
+
+    private static final String BOOK_COLUMNS = "id, title, author, isbn, total_copies, archived_borrow_count, loans";
+    private static final String USER_COLUMNS = "id, name, email, password";
+
+    private final Connection connection;
+
+    public SqlRepository(File dataDir) throws IOException {
+        dataDir.mkdirs();
+        // WRITE_DELAY=0 writes each commit out at once instead of up to half a second later.
+        // DataService closes the database itself, after its last write.
+        String url = "jdbc:h2:file:" + new File(dataDir, DATABASE_NAME).getAbsolutePath()
+                + ";WRITE_DELAY=0;DB_CLOSE_ON_EXIT=FALSE";
+        try {
+            connection = DriverManager.getConnection(url, "library", "");
+        } catch (SQLException e) {
+            throw new IOException("Could not open the database in " + dataDir, e);
+        }
+        // Nothing else will close the connection if the schema cannot be set up, and an open
+        // one keeps the database file locked
+        try {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                for (String ddl : SCHEMA) {
+                    statement.execute(ddl);
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            try {
+                connection.close();
+            } catch (SQLException closing) {
+                e.addSuppressed(closing);
+            }
+            throw new IOException("Could not set up the database in " + dataDir, e);
+        }
+    }
+
+    @Override
+    public synchronized boolean exists() {
+        try (PreparedStatement query = connection.prepareStatement(
+                "SELECT setting FROM library_meta WHERE name = 'schema_version'");
+             ResultSet rows = query.executeQuery()) {
+            return rows.next();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void load(Consumer<JournalEntry> entries) throws IOException {
+        try {
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT " + BOOK_COLUMNS + " FROM books ORDER BY seq")) {
+                while (rows.next()) {
+                    entries.accept(JournalEntry.putBook(readBook(rows)));
+                }
+            }
+
+            Map<String, User> users = new LinkedHashMap<>();
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT " + USER_COLUMNS + " FROM users ORDER BY seq")) {
+                while (rows.next()) {
+                    User user = readUser(rows);
+                    users.put(user.getId(), user);
+                }
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet rows = statement.executeQuery("SELECT user_id, book_id FROM user_books ORDER BY user_id, pos")) {
+                while (rows.next()) {
+                    User user = users.get(rows.getString(1));
+                    if (user != null) user.getBorrowedBooks().add(rows.getString(2));
+                }
+            }
+            for (User user : users.values()) {
+                entries.accept(JournalEntry.putUser(user));
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not load from the database", e);
+        }
+    }
+
+    // Only the last change to each entity in the batch matters
+    @Override
+    public synchronized long write(List<JournalEntry> changes, Catalog catalog) throws IOException {
+        Map<String, Book> books = new LinkedHashMap<>();
+        Map<String, User> users = new LinkedHashMap<>();
+        for (JournalEntry entry : changes) {
+            switch (entry.op) {
+                case JournalEntry.PUT_BOOK: books.put(entry.book.getId(), entry.book); break;
+                case JournalEntry.DELETE_BOOK: books.put(entry.id, null); break;
+                case JournalEntry.PUT_USER: users.put(entry.user.getId(), entry.user); break;
+                case JournalEntry.DELETE_USER: users.put(entry.id, null); break;
+            }
+        }
+        try {
+            deleteRows("books", "id", books);
+            deleteRows("users", "id", users);
+            deleteRows("user_books", "user_id", users);
+            long bytes = writeBooks(books.values(), true);
+            writeUsers(users.values(), true);
+            connection.commit();
+            return bytes;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not write " + changes.size() + " changes", e);
+        }
+    }
+
+    // Replaces all rows in one transaction, so a failure leaves the previous contents intact
+    @Override
+    public synchronized long checkpoint(Catalog catalog) throws IOException {
+        List<Book> books = new ArrayList<>();
+        List<User> users = new ArrayList<>();
+        catalog.read((allBooks, allUsers) -> {
+            books.addAll(allBooks);
+            users.addAll(allUsers);
+        });
+        try (Statement statement = connection.createStatement()) {
+            for (String table : new String[]{"books", "user_books", "users"}) {
+                statement.executeUpdate("DELETE FROM " + table);
+            }
+            long bytes = writeBooks(books, false);
+            writeUsers(users, false);
+            statement.executeUpdate("MERGE INTO library_meta (name, setting) KEY (name) VALUES ('schema_version', '"
+                    + SCHEMA_VERSION + "')");
+            connection.commit();
+            return bytes;
+        } catch (SQLException e) {
+            rollback();
+            throw new IOException("Could not write the catalog to the database", e);
+        }
+    }
+
+    @Override
+    public int pendingChanges() {
+        return 0;
+    }
+
+    @Override
+    public List<Book> findBooks(int offset, int limit) throws IOException {
+        return queryBooks("SELECT " + BOOK_COLUMNS + " FROM books ORDER BY seq LIMIT ? OFFSET ?", limit, offset);
+    }
+
+    @Override
+    public Book findBookByIsbn(String isbn) throws IOException {
+        List<Book> books = queryBooks("SELECT " + BOOK_COLUMNS + " FROM books WHERE isbn = ? ORDER BY seq LIMIT 1", isbn);
+        return books.isEmpty() ? null : books.get(0);
+    }
+
+    public Book findBook(String id) throws IOException {
+        List<Book> books = queryBooks("SELECT " + BOOK_COLUMNS + " FROM books WHERE id = ?", id);
+        return books.isEmpty() ? null : books.get(0);
+    }
+
+    @Override
+    public synchronized User findUserByEmail(String email) throws IOException {
+        try (PreparedStatement query = connection.prepareStatement(
+                "SELECT " + USER_COLUMNS + " FROM users WHERE email = ? ORDER BY seq LIMIT 1")) {
+            query.setString(1, email);
+            try (ResultSet rows = query.executeQuery()) {
+                if (!rows.next()) return null;
+                User user = readUser(rows);
+                user.getBorrowedBooks().addAll(findBorrowedBookIds(user.getId()));
+                return user;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not query user " + email, e);
+        }
+    }
+
+    // The books the user has out right now
+    public synchronized List<String> findBorrowedBookIds(String userId) throws IOException {
+        List<String> bookIds = new ArrayList<>();
+        try (PreparedStatement query = connection.prepareStatement(
+                "SELECT book_id FROM user_books WHERE user_id = ? ORDER BY pos")) {
+            query.setString(1, userId);
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    bookIds.add(rows.getString(1));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not query loans of " + userId, e);
+        }
+        return bookIds;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            throw new IOException("Could not close the database", e);
+        }
+    }
+
+    private synchronized List<Book> queryBooks(String sql, Object... parameters) throws IOException {
+        List<Book> books = new ArrayList<>();
+        try (PreparedStatement query = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                query.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet rows = query.executeQuery()) {
+                while (rows.next()) {
+                    books.add(readBook(rows));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Could not query books", e);
+        }
+        return books;
+    }
+
+    // Each book is read under its own lock, so its row and loans match. Existing rows are
+    // updated in place and keep their position. Returns the bytes of loan history written.
+    private long writeBooks(Collection<Book> books, boolean replace) throws SQLException, IOException {
+        String insert = replace ? "MERGE INTO books (" + BOOK_COLUMNS + ") KEY (id)" : "INSERT INTO books (" + BOOK_COLUMNS + ")";
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream loans = new DataOutputStream(buffer);
+        long bytes = 0;
+        try (PreparedStatement rows = connection.prepareStatement(insert + " VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            int pending = 0;
+            for (Book book : books) {
+                if (book == null) continue;
+                buffer.reset();
+                synchronized (book) {
+                    rows.setString(1, book.getId());
+                    rows.setString(2, book.getTitle());
+                    rows.setString(3, book.getAuthor());
+                    rows.setString(4, book.getIsbn());
+                    rows.setInt(5, book.getTotalCopies());
+                    rows.setInt(6, book.getArchivedBorrowCount());
+                    writeLoans(loans, book);
+                }
+                rows.setBytes(7, buffer.toByteArray());
+                bytes += buffer.size();
+                rows.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    rows.executeBatch();
+                    pending = 0;
+                }
+            }
+            rows.executeBatch();
+        }
+        return bytes;
+    }
+
+    // A user's current loans are few and simply rewritten with the user
+    private void writeUsers(Collection<User> users, boolean replace) throws SQLException {
+        String insert = replace ? "MERGE INTO users (" + USER_COLUMNS + ") KEY (id)" : "INSERT INTO users (" + USER_COLUMNS + ")";
+        try (PreparedStatement userRows = connection.prepareStatement(insert + " VALUES (?, ?, ?, ?)");
+             PreparedStatement deleteBorrowed = connection.prepareStatement("DELETE FROM user_books WHERE user_id = ?");
+             PreparedStatement borrowedRows = connection.prepareStatement(
+                     "INSERT INTO user_books (user_id, pos, book_id) VALUES (?, ?, ?)")) {
+            int pending = 0;
+            for (User user : users) {
+                if (user == null) continue;
+                synchronized (user) {
+                    userRows.setString(1, user.getId());
+                    userRows.setString(2, user.getName());
+                    userRows.setString(3, user.getEmail());
+                    userRows.setString(4, user.getPassword());
+                    userRows.addBatch();
+                    if (replace) {
+                        deleteBorrowed.setString(1, user.getId());
+                        deleteBorrowed.addBatch();
+                    }
+                    List<String> borrowed = user.getBorrowedBooks();
+                    for (int i = 0; i < borrowed.size(); i++) {
+                        borrowedRows.setString(1, user.getId());
+                        borrowedRows.setInt(2, i);
+                        borrowedRows.setString(3, borrowed.get(i));
+                        borrowedRows.addBatch();
+                    }
+                }
+                if (++pending == BATCH_SIZE) {
+                    flushUsers(userRows, deleteBorrowed, borrowedRows);
+                    pending = 0;
+                }
+            }
+            flushUsers(userRows, deleteBorrowed, borrowedRows);
+        }
+    }
+
+    // The old loan rows are cleared before the new ones go in
+    private static void flushUsers(PreparedStatement userRows, PreparedStatement deleteBorrowed,
+                                   PreparedStatement borrowedRows) throws SQLException {
+        userRows.executeBatch();
+        deleteBorrowed.executeBatch();
+        borrowedRows.executeBatch();
+    }
+
+    // Deletes the rows of the ids mapped to null
+    private void deleteRows(String table, String column, Map<String, ?> changes) throws SQLException {
+        if (!changes.containsValue(null)) return;
+        try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE " + column + " = ?")) {
+            for (Map.Entry<String, ?> change : changes.entrySet()) {
+                if (change.getValue() != null) continue;
+                delete.setString(1, change.getKey());
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // The DUE_DATES_AND_HOLDS marker and count, then per loan: user id, user name, borrow date,
+    // return date, due date, returned; then the number of holds and the waiting user ids.
+    // Rows written before loans had due dates start with the count and stop after the loans,
+    // and DUE_DATES rows stop after the loans.
+    private static void writeLoans(DataOutputStream out, Book book) throws IOException {
+        out.writeInt(DUE_DATES_AND_HOLDS);
+        out.writeInt(book.getLoanCount());
+        for (int i = 0; i < book.getLoanCount(); i++) {
+            BinarySnapshotFormat.writeString(out, book.getLoanUserId(i));
+            BinarySnapshotFormat.writeString(out, book.getLoanUserName(i));
+            out.writeLong(book.getLoanBorrowDate(i));
+            out.writeLong(book.getLoanReturnDate(i));
+            out.writeLong(book.getLoanDueDate(i));
+            out.writeBoolean(book.isLoanReturned(i));
+        }
+        List<String> holds = book.getHolds();
+        out.writeInt(holds.size());
+        for (String userId : holds) {
+            BinarySnapshotFormat.writeString(out, userId);
+        }
+    }
+
+    private static Book readBook(ResultSet rows) throws SQLException {
+        Book book = new Book(rows.getString(1), rows.getString(2), rows.getString(3), rows.getString(4));
+        book.setTotalCopies(rows.getInt(5));
+        book.setArchivedBorrowCount(rows.getInt(6));
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(rows.getBytes(7)))) {
+            int count = in.readInt();
+            boolean holds = count == DUE_DATES_AND_HOLDS;
+            boolean dueDates = holds || count == DUE_DATES;
+            if (dueDates) {
+                count = in.readInt();
+            }
+            for (int i = 0; i < count; i++) {
+                Book.BorrowRecord record = new Book.BorrowRecord(
+                        BinarySnapshotFormat.readString(in), BinarySnapshotFormat.readString(in));
+                record.setBorrowDate(in.readLong());
+                record.setReturnDate(in.readLong());
+                if (dueDates) {
+                    record.setDueDate(in.readLong());
+                }
+                record.setReturned(in.readBoolean());
+                book.addBorrowRecord(record);
+            }
+            if (holds) {
+                int holdCount = in.readInt();
+                for (int i = 0; i < holdCount; i++) {
+                    book.addHold(BinarySnapshotFormat.readString(in));
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Damaged loan history for book " + book.getId(), e);
+        }
+        return book;
+    }
+
+    private static User readUser(ResultSet rows) throws SQLException {
+        return new User(rows.getString(1), rows.getString(2), rows.getString(3), rows.getString(4));
+    }
+}
@@ -0,0 +1,27 @@
+package com.library.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Hands out one shared instance per distinct string value. Authors, user ids and user names
+// turn up in thousands of books and borrow records, and every load or journal replay would
+// otherwise give each occurrence its own copy of the characters.
+// Not thread-safe: DataService only uses it under its catalog write lock. Values of deleted
+// entities stay in the pool until the next reload, which starts a fresh one.
+class StringPool {
+    private final Map<String, String> strings = new HashMap<>();
+
+    public String canonical(String s) {
+        if (s == null) return null;
+        String existing = strings.putIfAbsent(s, s);
+        return existing != null ? existing : s;
+    }
+
+    public int size() {
+        return strings.size();
+    }
+
+    public void clear() {
+        strings.clear();
+    }
+}
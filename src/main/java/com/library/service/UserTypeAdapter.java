@@ -0,0 +1,70 @@
+package com.library.service;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.library.model.User;
+
+import java.io.IOException;
+
+// Streaming counterpart of BookTypeAdapter for users
+class UserTypeAdapter extends TypeAdapter<User> {
+    @Override
+    public void write(JsonWriter out, User user) throws IOException {
+        if (user == null) {
+            out.nullValue();
+            return;
+        }
+        synchronized (user) {
+            writeUser(out, user);
+        }
+    }
+
+    private void writeUser(JsonWriter out, User user) throws IOException {
+        out.beginObject();
+        out.name("id").value(user.getId());
+        out.name("name").value(user.getName());
+        out.name("email").value(user.getEmail());
+        out.name("password").value(user.getPassword());
+        out.name("borrowedBooks").beginArray();
+        for (String bookId : user.getBorrowedBooks()) {
+            out.value(bookId);
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+    @Override
+    public User read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        User user = new User(null, null, null, null);
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id": user.setId(in.nextString()); break;
+                case "name": user.setName(in.nextString()); break;
+                case "email": user.setEmail(in.nextString()); break;
+                case "password": user.setPassword(in.nextString()); break;
+                case "borrowedBooks":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        user.getBorrowedBooks().add(in.nextString());
+                    }
+                    in.endArray();
+                    break;
+                default: in.skipValue();
+            }
+        }
+        in.endObject();
+        return user;
+    }
+}
@@ -1,34 +1,81 @@
 package com.library.ui;
 
+import com.library.metrics.Counter;
+import com.library.metrics.LatencyHistogram;
+import com.library.metrics.Metrics;
 import com.library.model.Book;
 import com.library.model.User;
+import com.library.service.BookFilter;
+import com.library.service.CatalogChange;
+import com.library.service.CatalogImporter;
+import com.library.service.CatalogSnapshot;
 import com.library.service.DataService;
+import com.library.service.Loan;
 
 import javax.swing.*;
 import javax.swing.table.DefaultTableModel;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class BooksPanel extends JPanel {
     private final DataService dataService;
     private JTable booksTable;
     private JTable borrowingHistoryTable;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<Book> tableModel;
     private DefaultTableModel historyTableModel;
     private SimpleDateFormat dateFormat;
+    private SimpleDateFormat dayFormat;
     private JTextField searchField;
-    private JComboBox<String> filterComboBox;
+    private JComboBox<BookFilter.Availability> filterComboBox;
+    private JLabel searchStatusLabel;
+    private JCheckBox showArchivedCheckBox;
+    // Typing restarts this timer, so a burst of keystrokes runs a single search
+    private Timer searchTimer;
+    private SwingWorker<int[], Void> searchWorker;
+    // The same for the history date fields
+    private Timer historyTimer;
+    // Reads the archive file for a book's older loans, which can take a while
+    private SwingWorker<List<Book.BorrowRecord>, Void> historyWorker;
+    // What the tables were last filled from, so refreshes with nothing new are skipped
+    private long shownVersion = -1;
+    private BookFilter shownFilter;
+    private long historyVersion = -1;
+    private String historyBookId;
+    private List<Object> historyKey;
+    private JTextField historyFromField;
+    private JTextField historyToField;
+    private JCheckBox allBooksCheckBox;
+    // Catalog-wide history is capped, newest loans are reached by narrowing the dates
+    private static final int MAX_HISTORY_ROWS = 1000;
+    private static final int SEARCH_DELAY_MS = 200;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private final Metrics metrics;
+    private final LatencyHistogram filterLatency;
+    private final LatencyHistogram tableUpdateLatency;
+    private final Counter rowsRendered;
     
     public BooksPanel(DataService dataService) {
         this.dataService = dataService;
+        this.metrics = dataService.getMetrics();
+        this.filterLatency = metrics.histogram("booksFilter");
+        this.tableUpdateLatency = metrics.histogram("booksTableUpdate");
+        this.rowsRendered = metrics.counter("rowsRendered");
         this.dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        this.dayFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dayFormat.setLenient(false);
         setupUI();
         refreshTable();
     }
@@ -46,7 +93,7 @@ public class BooksPanel extends JPanel {
         // Add search panel
         JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         searchField = new JTextField(20);
-        filterComboBox = new JComboBox<>(new String[]{"All Books", "Available Only", "Currently Borrowed"});
+        filterComboBox = new JComboBox<>(BookFilter.Availability.values());
         JLabel searchLabel = new JLabel("Search:");
         JLabel filterLabel = new JLabel("Filter:");
         
@@ -55,23 +102,35 @@ public class BooksPanel extends JPanel {
         searchPanel.add(Box.createHorizontalStrut(20));
         searchPanel.add(filterLabel);
         searchPanel.add(filterComboBox);
+        searchStatusLabel = new JLabel();
+        searchPanel.add(Box.createHorizontalStrut(20));
+        searchPanel.add(searchStatusLabel);
         
         // Add search listeners
+        searchTimer = new Timer(SEARCH_DELAY_MS, e -> applyFilters());
+        searchTimer.setRepeats(false);
         searchField.getDocument().addDocumentListener(new DocumentListener() {
-            public void changedUpdate(DocumentEvent e) { applyFilters(); }
-            public void removeUpdate(DocumentEvent e) { applyFilters(); }
-            public void insertUpdate(DocumentEvent e) { applyFilters(); }
+            public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+            public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
         });
         
         filterComboBox.addActionListener(e -> applyFilters());
         
         topPanel.add(searchPanel, BorderLayout.NORTH);
         
-        String[] columns = {"ID", "Title", "Author", "ISBN", "Available/Total"};
-        tableModel = new DefaultTableModel(columns, 0) {
+        String[] columns = {"ID", "Title", "Author", "ISBN", "Available/Total", "Holds"};
+        tableModel = new EntityTableModel<>(columns, Book::getId) {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            protected Object getValueAt(Book book, int column) {
+                switch (column) {
+                    case 0: return book.getId();
+                    case 1: return book.getTitle();
+                    case 2: return book.getAuthor();
+                    case 3: return book.getIsbn();
+                    case 4: return book.getAvailableCopies() + "/" + book.getTotalCopies();
+                    default: return book.getHoldCount();
+                }
             }
         };
         booksTable = new JTable(tableModel);
@@ -86,6 +145,7 @@ public class BooksPanel extends JPanel {
         JButton borrowButton = new JButton("Borrow");
         JButton returnButton = new JButton("Return");
         JButton addCopyButton = new JButton("Add Copy");
+        JButton importButton = new JButton("Import...");
         
         buttonsPanel.add(addButton);
         buttonsPanel.add(editButton);
@@ -93,12 +153,13 @@ public class BooksPanel extends JPanel {
         buttonsPanel.add(borrowButton);
         buttonsPanel.add(returnButton);
         buttonsPanel.add(addCopyButton);
+        buttonsPanel.add(importButton);
         topPanel.add(buttonsPanel, BorderLayout.SOUTH);
         
         // Create bottom panel with borrowing history
         JPanel bottomPanel = new JPanel(new BorderLayout());
         bottomPanel.setBorder(BorderFactory.createTitledBorder("Borrowing History"));
-        String[] historyColumns = {"Book Title", "User", "Borrow Date", "Return Date", "Status"};
+        String[] historyColumns = {"Book Title", "User", "Borrow Date", "Due Date", "Return Date", "Status"};
         historyTableModel = new DefaultTableModel(historyColumns, 0) {
             @Override
             public boolean isCellEditable(int row, int column) {
@@ -108,6 +169,33 @@ public class BooksPanel extends JPanel {
         borrowingHistoryTable = new JTable(historyTableModel);
         JScrollPane historyScrollPane = new JScrollPane(borrowingHistoryTable);
         bottomPanel.add(historyScrollPane, BorderLayout.CENTER);
+        // Archived records live in a separate file that is only read once this is ticked
+        showArchivedCheckBox = new JCheckBox("Include archived history");
+        showArchivedCheckBox.addActionListener(e -> refreshHistoryTable());
+        // Borrow dates as yyyy-MM-dd, both days included; either may be left empty
+        historyFromField = new JTextField(8);
+        historyToField = new JTextField(8);
+        historyTimer = new Timer(SEARCH_DELAY_MS, e -> refreshHistoryTable());
+        historyTimer.setRepeats(false);
+        DocumentListener dateListener = new DocumentListener() {
+            public void changedUpdate(DocumentEvent e) { historyTimer.restart(); }
+            public void removeUpdate(DocumentEvent e) { historyTimer.restart(); }
+            public void insertUpdate(DocumentEvent e) { historyTimer.restart(); }
+        };
+        historyFromField.getDocument().addDocumentListener(dateListener);
+        historyToField.getDocument().addDocumentListener(dateListener);
+        // Loans of every book borrowed between the dates, read from the loan index
+        allBooksCheckBox = new JCheckBox("All books");
+        allBooksCheckBox.addActionListener(e -> refreshHistoryTable());
+        JPanel historyFilterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        historyFilterPanel.add(new JLabel("Borrowed from:"));
+        historyFilterPanel.add(historyFromField);
+        historyFilterPanel.add(new JLabel("to:"));
+        historyFilterPanel.add(historyToField);
+        historyFilterPanel.add(allBooksCheckBox);
+        historyFilterPanel.add(Box.createHorizontalStrut(20));
+        historyFilterPanel.add(showArchivedCheckBox);
+        bottomPanel.add(historyFilterPanel, BorderLayout.SOUTH);
         
         // Add panels to split pane
         splitPane.setTopComponent(topPanel);
@@ -116,6 +204,7 @@ public class BooksPanel extends JPanel {
         
         // Add button listeners
         addButton.addActionListener(e -> showAddBookDialog());
+        importButton.addActionListener(e -> showImportDialog());
         editButton.addActionListener(e -> {
             int selectedRow = booksTable.getSelectedRow();
             if (selectedRow != -1) {
@@ -132,7 +221,6 @@ public class BooksPanel extends JPanel {
                 String bookId = (String) tableModel.getValueAt(selectedRow, 0);
                 if (confirmDelete()) {
                     dataService.deleteBook(bookId);
-                    refreshTable();
                 }
             } else {
                 JOptionPane.showMessageDialog(this, "Please select a book to delete");
@@ -148,7 +236,7 @@ public class BooksPanel extends JPanel {
                     if (book.isAvailable()) {
                         showBorrowDialog(book);
                     } else {
-                        JOptionPane.showMessageDialog(this, "No copies available");
+                        showHoldDialog(book);
                     }
                 }
             } else {
@@ -173,12 +261,7 @@ public class BooksPanel extends JPanel {
             int selectedRow = booksTable.getSelectedRow();
             if (selectedRow != -1) {
                 String bookId = (String) tableModel.getValueAt(selectedRow, 0);
-                Book book = getBookById(bookId);
-                if (book != null) {
-                    book.setTotalCopies(book.getTotalCopies() + 1);
-                    dataService.updateBook(book);
-                    refreshTable();
-                }
+                dataService.addCopy(bookId);
             } else {
                 JOptionPane.showMessageDialog(this, "Please select a book");
             }
@@ -213,10 +296,49 @@ public class BooksPanel extends JPanel {
             Book book = new Book(id, titleField.getText(), authorField.getText(), isbnField.getText());
             book.setTotalCopies((Integer) copiesSpinner.getValue());
             dataService.addBook(book);
-            refreshTable();
         }
     }
 
+    // Imports run in the background; a summary is shown when done
+    private void showImportDialog() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setDialogTitle("Import Books");
+        chooser.setFileFilter(new FileNameExtensionFilter("CSV or JSON files", "csv", "json"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        searchStatusLabel.setText("Importing " + file.getName() + "...");
+        new SwingWorker<CatalogImporter.Result, Void>() {
+            @Override
+            protected CatalogImporter.Result doInBackground() throws IOException {
+                return new CatalogImporter(dataService).importFile(file);
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    CatalogImporter.Result result = get();
+                    StringBuilder message = new StringBuilder(result.toString());
+                    List<CatalogImporter.Rejection> rejections = result.getRejections();
+                    for (int i = 0; i < Math.min(10, rejections.size()); i++) {
+                        message.append("\nLine ").append(rejections.get(i));
+                    }
+                    if (result.getRejectedCount() > 10) {
+                        message.append("\n...");
+                    }
+                    JOptionPane.showMessageDialog(BooksPanel.this, message.toString());
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    JOptionPane.showMessageDialog(BooksPanel.this,
+                        "Import failed: " + e.getCause(),
+                        "Error",
+                        JOptionPane.ERROR_MESSAGE);
+                }
+            }
+        }.execute();
+    }
+
     private void showEditBookDialog(Book book) {
         if (book == null) return;
         
@@ -234,11 +356,7 @@ public class BooksPanel extends JPanel {
             JOptionPane.OK_CANCEL_OPTION);
             
         if (option == JOptionPane.OK_OPTION) {
-            book.setTitle(titleField.getText());
-            book.setAuthor(authorField.getText());
-            book.setIsbn(isbnField.getText());
-            dataService.updateBook(book);
-            refreshTable();
+            dataService.editBook(book.getId(), titleField.getText(), authorField.getText(), isbnField.getText());
         }
     }
     
@@ -250,10 +368,7 @@ public class BooksPanel extends JPanel {
     }
     
     private Book getBookById(String id) {
-        return dataService.getAllBooks().stream()
-                .filter(book -> book.getId().equals(id))
-                .findFirst()
-                .orElse(null);
+        return dataService.getBookById(id);
     }
     
     private void showBorrowDialog(Book book) {
@@ -278,25 +393,54 @@ public class BooksPanel extends JPanel {
 
         if (option == JOptionPane.OK_OPTION) {
             User selectedUser = (User) userComboBox.getSelectedItem();
-            book.borrowBook(selectedUser);
-            selectedUser.borrowBook(book.getId());
-            dataService.updateBook(book);
-            dataService.updateUser(selectedUser);
-            refreshTable();
-            refreshHistoryTable();
-            firePropertyChange("REFRESH_USERS", null, null);
+            if (!dataService.borrowBook(book.getId(), selectedUser.getId())) {
+                JOptionPane.showMessageDialog(this,
+                    "No copy is available, or " + selectedUser.getName() + " already has this book",
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             JOptionPane.showMessageDialog(this,
                 "Book borrowed successfully by " + selectedUser.getName());
         }
     }
 
-    private void showReturnDialog(Book book) {
-        List<Book.BorrowRecord> activeRecords = new ArrayList<>();
-        for (Book.BorrowRecord record : book.getBorrowRecords()) {
-            if (!record.isReturned()) {
-                activeRecords.add(record);
+    // No copy is free, so the user joins the line and gets the next copy returned
+    private void showHoldDialog(Book book) {
+        List<User> users = dataService.getAllUsers();
+        if (users.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No copies available");
+            return;
+        }
+
+        JComboBox<User> userComboBox = new JComboBox<>(users.toArray(new User[0]));
+        Object[] message = {
+            "No copies available. " + book.getHoldCount() + " already waiting.",
+            "Place a hold for:", userComboBox
+        };
+
+        int option = JOptionPane.showConfirmDialog(this,
+            message,
+            "Place Hold",
+            JOptionPane.OK_CANCEL_OPTION);
+
+        if (option == JOptionPane.OK_OPTION) {
+            User selectedUser = (User) userComboBox.getSelectedItem();
+            int position = dataService.placeHold(book.getId(), selectedUser.getId());
+            if (position == 0) {
+                JOptionPane.showMessageDialog(this,
+                    selectedUser.getName() + " already has this book, or a copy has just come back",
+                    "Error",
+                    JOptionPane.ERROR_MESSAGE);
+                return;
             }
+            JOptionPane.showMessageDialog(this,
+                selectedUser.getName() + " is number " + position + " in line");
         }
+    }
+
+    private void showReturnDialog(Book book) {
+        List<Book.BorrowRecord> activeRecords = book.getActiveBorrowRecords();
 
         if (activeRecords.isEmpty()) {
             JOptionPane.showMessageDialog(this,
@@ -307,7 +451,7 @@ public class BooksPanel extends JPanel {
         }
 
         String[] borrowers = activeRecords.stream()
-            .map(record -> record.getUserName())
+            .map(dataService::getUserName)
             .toArray(String[]::new);
 
         String selectedBorrower = (String) JOptionPane.showInputDialog(
@@ -321,71 +465,222 @@ public class BooksPanel extends JPanel {
 
         if (selectedBorrower != null) {
             Book.BorrowRecord record = activeRecords.get(Arrays.asList(borrowers).indexOf(selectedBorrower));
-            User user = dataService.getUserById(record.getUserId());
-            if (user != null) {
-                book.returnBook(user.getId());
-                user.returnBook(book.getId());
-                dataService.updateBook(book);
-                dataService.updateUser(user);
-                refreshTable();
-                refreshHistoryTable();
-                firePropertyChange("REFRESH_USERS", null, null);
-                JOptionPane.showMessageDialog(this, "Book returned successfully");
+            int waiting = book.getHoldCount();
+            if (dataService.returnBook(book.getId(), record.getUserId())) {
+                JOptionPane.showMessageDialog(this, book.getHoldCount() < waiting
+                    ? "Book returned and lent to the next user in line"
+                    : "Book returned successfully");
             }
         }
     }
 
+    // The selected book's loans, or with "All books" ticked every loan in the date range.
+    // While a date is only partly typed the table keeps showing the last range.
     private void refreshHistoryTable() {
-        historyTableModel.setRowCount(0);
+        historyTimer.stop();
+        Long fromDay = parseDay(historyFromField, Long.MIN_VALUE);
+        Long toDay = parseDay(historyToField, Long.MAX_VALUE - DAY_MILLIS);
+        if (fromDay == null || toDay == null) {
+            return;
+        }
         int selectedRow = booksTable.getSelectedRow();
-        if (selectedRow != -1) {
-            String bookId = (String) tableModel.getValueAt(selectedRow, 0);
+        String bookId = selectedRow != -1 ? (String) tableModel.getValueAt(selectedRow, 0) : null;
+        long version = dataService.getVersion();
+        boolean archived = showArchivedCheckBox.isSelected();
+        boolean allBooks = allBooksCheckBox.isSelected();
+        long from = fromDay;
+        long to = toDay + DAY_MILLIS;
+        List<Object> key = Arrays.asList(bookId, archived, allBooks, from, to);
+        if (version == historyVersion && key.equals(historyKey)) {
+            return;
+        }
+        historyVersion = version;
+        historyKey = key;
+        historyBookId = allBooks ? null : bookId;
+        historyTableModel.setRowCount(0);
+        if (historyWorker != null) {
+            // Not interrupted: the archive keeps what it reads for the next book
+            historyWorker.cancel(false);
+            historyWorker = null;
+        }
+        if (allBooks) {
+            for (Loan loan : dataService.getLoansBorrowedBetween(from, to, MAX_HISTORY_ROWS)) {
+                addHistoryRow(loan.getBook(), loan.getRecord());
+            }
+        } else if (bookId != null) {
             Book book = getBookById(bookId);
-            if (book != null) {
-                for (Book.BorrowRecord record : book.getBorrowRecords()) {
-                    Object[] row = {
-                        book.getTitle(),
-                        record.getUserName(),
-                        dateFormat.format(new Date(record.getBorrowDate())),
-                        record.isReturned() ? dateFormat.format(new Date(record.getReturnDate())) : "Not returned",
-                        record.isReturned() ? "Returned" : "Borrowed"
-                    };
-                    historyTableModel.addRow(row);
+            if (book == null) {
+                return;
+            }
+            if (!archived) {
+                addHistoryRows(book, book.getBorrowRecords(), from, to);
+                return;
+            }
+            // As in applyFilters, only the latest load fills the table
+            historyWorker = new SwingWorker<>() {
+                @Override
+                protected List<Book.BorrowRecord> doInBackground() {
+                    List<Book.BorrowRecord> records = new ArrayList<>(dataService.getArchivedHistory(book.getId()));
+                    records.addAll(book.getBorrowRecords());
+                    return records;
+                }
+
+                @Override
+                protected void done() {
+                    if (isCancelled() || historyWorker != this) {
+                        return;
+                    }
+                    historyWorker = null;
+                    try {
+                        addHistoryRows(book, get(), from, to);
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                        // Try again on the next refresh
+                        historyKey = null;
+                    }
                 }
+            };
+            historyWorker.execute();
+        }
+    }
+
+    private void addHistoryRows(Book book, List<Book.BorrowRecord> records, long from, long to) {
+        for (Book.BorrowRecord record : records) {
+            if (record.getBorrowDate() >= from && record.getBorrowDate() < to) {
+                addHistoryRow(book, record);
             }
         }
     }
 
+    private void addHistoryRow(Book book, Book.BorrowRecord record) {
+        String status = record.isReturned() ? "Returned"
+                : record.isOverdue(System.currentTimeMillis()) ? "Overdue" : "Borrowed";
+        Object[] row = {
+            book.getTitle(),
+            dataService.getUserName(record),
+            dateFormat.format(new Date(record.getBorrowDate())),
+            dateFormat.format(new Date(record.getDueDate())),
+            record.isReturned() ? dateFormat.format(new Date(record.getReturnDate())) : "Not returned",
+            status
+        };
+        historyTableModel.addRow(row);
+    }
+
+    // Start of the day typed in the field, the default while it is empty, or null (and the
+    // field in red) while it does not hold a whole yyyy-MM-dd date
+    private Long parseDay(JTextField field, long defaultValue) {
+        String text = field.getText().trim();
+        if (text.isEmpty()) {
+            field.setForeground(UIManager.getColor("TextField.foreground"));
+            return defaultValue;
+        }
+        ParsePosition position = new ParsePosition(0);
+        Date day = text.length() == 10 ? dayFormat.parse(text, position) : null;
+        if (day == null || position.getIndex() != text.length()) {
+            field.setForeground(Color.RED);
+            return null;
+        }
+        field.setForeground(UIManager.getColor("TextField.foreground"));
+        return day.getTime();
+    }
+
+    // Runs the search on a background thread. A newer search cancels the one in flight,
+    // and only the latest search is allowed to update the table.
     private void applyFilters() {
-        tableModel.setRowCount(0);
-        String searchText = searchField.getText().toLowerCase();
-        String filter = (String) filterComboBox.getSelectedItem();
+        searchTimer.stop();
+        if (searchWorker != null) {
+            searchWorker.cancel(true);
+        }
+        BookFilter filter = new BookFilter(searchField.getText(),
+            (BookFilter.Availability) filterComboBox.getSelectedItem());
+        if (dataService.getVersion() == shownVersion && filter.equals(shownFilter)) {
+            searchWorker = null;
+            return;
+        }
         
-        for (Book book : dataService.getAllBooks()) {
-            boolean matchesSearch = searchText.isEmpty() ||
-                book.getTitle().toLowerCase().contains(searchText) ||
-                book.getAuthor().toLowerCase().contains(searchText) ||
-                book.getIsbn().toLowerCase().contains(searchText);
-                
-            boolean matchesFilter = "All Books".equals(filter) ||
-                ("Available Only".equals(filter) && book.getAvailableCopies() > 0) ||
-                ("Currently Borrowed".equals(filter) && book.getAvailableCopies() < book.getTotalCopies());
-                
-            if (matchesSearch && matchesFilter) {
-                Object[] row = {
-                    book.getId(),
-                    book.getTitle(),
-                    book.getAuthor(),
-                    book.getIsbn(),
-                    book.getAvailableCopies() + "/" + book.getTotalCopies()
-                };
-                tableModel.addRow(row);
+        searchWorker = new SwingWorker<>() {
+            private CatalogSnapshot snapshot;
+            private List<Book> books;
+            private long elapsedMillis;
+            
+            @Override
+            protected int[] doInBackground() {
+                long start = System.nanoTime();
+                snapshot = dataService.getSnapshot();
+                books = snapshot.getBooks();
+                int[] rows = filter.apply(dataService, books, this::isCancelled);
+                long elapsed = System.nanoTime() - start;
+                elapsedMillis = elapsed / 1_000_000;
+                if (rows != null) {
+                    filterLatency.record(elapsed);
+                }
+                return rows;
             }
-        }
+            
+            @Override
+            protected void done() {
+                if (isCancelled() || searchWorker != this) {
+                    return;
+                }
+                try {
+                    int[] rows = get();
+                    long start = metrics.start();
+                    tableModel.setRows(books, rows);
+                    shownVersion = snapshot.getVersion();
+                    shownFilter = filter;
+                    tableUpdateLatency.recordSince(start);
+                    rowsRendered.add(rows.length);
+                    searchStatusLabel.setText(rows.length + " books (" + elapsedMillis + " ms)");
+                } catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        searchWorker.execute();
     }
 
     private void refreshTable() {
         applyFilters();
         refreshHistoryTable();
     }
+
+    // The changes of one frame. Rows of changed books are repainted in place, and the filter
+    // only runs again over the catalog when the set of rows shown is no longer right.
+    void catalogChanged(List<CatalogChange> changes) {
+        boolean refilter = searchWorker != null && !searchWorker.isDone();
+        boolean history = false;
+        long latest = shownVersion;
+        for (CatalogChange change : changes) {
+            latest = Math.max(latest, change.getVersion());
+            CatalogChange.Kind kind = change.getKind();
+            if (change.getEntity() == CatalogChange.Entity.USER) {
+                // Borrower names shown in the history
+                history |= kind == CatalogChange.Kind.UPDATED || kind == CatalogChange.Kind.REMOVED;
+                continue;
+            }
+            history |= historyBookId == null || change.getId() == null || change.getId().equals(historyBookId);
+            // Only the history's status column shows whether a loan is overdue
+            if (refilter || kind == CatalogChange.Kind.OVERDUE) continue;
+            if (kind == CatalogChange.Kind.UPDATED || kind == CatalogChange.Kind.LOANED) {
+                Book book = getBookById(change.getId());
+                boolean shown = tableModel.indexOf(change.getId()) != -1;
+                boolean fits = book != null && (shownFilter == null || shownFilter.matches(book));
+                if (shown != fits) {
+                    refilter = true;
+                } else if (shown) {
+                    tableModel.fireRowChanged(change.getId());
+                }
+            } else {
+                refilter = true;
+            }
+        }
+        if (refilter) {
+            applyFilters();
+        } else {
+            shownVersion = latest;
+        }
+        if (history) {
+            refreshHistoryTable();
+        }
+    }
 } 
\ No newline at end of file
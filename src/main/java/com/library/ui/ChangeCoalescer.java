@@ -0,0 +1,69 @@
+package com.library.ui;
+
+import com.library.service.CatalogChange;
+import com.library.service.DataService;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// Collects DataService change events from whichever thread made the change and hands them to
+// the panels on the event thread, at most once per frame. Repeated changes to the same entity
+// within a frame arrive as one, so a burst of loans costs a single repaint.
+class ChangeCoalescer implements Consumer<CatalogChange> {
+    private static final int FRAME_MS = 16;
+
+    private final List<Consumer<List<CatalogChange>>> listeners = new CopyOnWriteArrayList<>();
+    // Latest change per entity, in the order the entities first changed
+    private final Map<String, CatalogChange> pending = new LinkedHashMap<>();
+    private final Timer timer;
+    private boolean scheduled;
+
+    ChangeCoalescer(DataService dataService) {
+        timer = new Timer(FRAME_MS, e -> deliver());
+        timer.setRepeats(false);
+        dataService.addChangeListener(this);
+    }
+
+    // Listeners run on the event thread
+    void addListener(Consumer<List<CatalogChange>> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void accept(CatalogChange change) {
+        synchronized (pending) {
+            String key = change.getEntity() + ":" + change.getId();
+            CatalogChange previous = pending.get(key);
+            // Something added and then edited within the frame is still new to the panels
+            if (previous != null && previous.getKind() == CatalogChange.Kind.ADDED
+                    && change.getKind() != CatalogChange.Kind.REMOVED) {
+                return;
+            }
+            // A loan falling due only needs a refresh, which any other pending change brings
+            if (previous != null && change.getKind() == CatalogChange.Kind.OVERDUE) {
+                return;
+            }
+            pending.put(key, change);
+            if (scheduled) return;
+            scheduled = true;
+        }
+        SwingUtilities.invokeLater(timer::restart);
+    }
+
+    private void deliver() {
+        List<CatalogChange> changes;
+        synchronized (pending) {
+            changes = new ArrayList<>(pending.values());
+            pending.clear();
+            scheduled = false;
+        }
+        for (Consumer<List<CatalogChange>> listener : listeners) {
+            listener.accept(changes);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.library.ui;
+
+import com.library.metrics.Counter;
+import com.library.metrics.LatencyHistogram;
+import com.library.metrics.Metrics;
+import com.library.service.DataService;
+
+import javax.swing.*;
+import javax.swing.table.DefaultTableModel;
+import java.awt.*;
+
+// Operation latencies and counters collected by the DataService, refreshed once a second
+// while the tab is showing. The same figures are available over JMX under com.library.
+public class DiagnosticsPanel extends JPanel {
+    private static final int REFRESH_MS = 1000;
+
+    private final Metrics metrics;
+    private DefaultTableModel latencyTableModel;
+    private DefaultTableModel counterTableModel;
+    private JCheckBox enabledCheckBox;
+    private JLabel errorLabel;
+
+    public DiagnosticsPanel(DataService dataService) {
+        this.metrics = dataService.getMetrics();
+        setupUI();
+        refreshMetrics();
+        new Timer(REFRESH_MS, e -> {
+            if (isShowing()) {
+                refreshMetrics();
+            }
+        }).start();
+    }
+
+    private void setupUI() {
+        setLayout(new BorderLayout());
+
+        // Controls
+        JPanel controlsPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        enabledCheckBox = new JCheckBox("Collect metrics", metrics.isEnabled());
+        enabledCheckBox.addActionListener(e -> metrics.setEnabled(enabledCheckBox.isSelected()));
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            metrics.reset();
+            refreshMetrics();
+        });
+        controlsPanel.add(enabledCheckBox);
+        controlsPanel.add(resetButton);
+
+        // Latencies
+        String[] latencyColumns = {"Operation", "Count", "Mean (ms)", "p50 (ms)", "p99 (ms)", "Max (ms)"};
+        latencyTableModel = new DefaultTableModel(latencyColumns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JPanel latencyPanel = new JPanel(new BorderLayout());
+        latencyPanel.setBorder(BorderFactory.createTitledBorder("Latency"));
+        latencyPanel.add(new JScrollPane(new JTable(latencyTableModel)));
+
+        // Counters
+        String[] counterColumns = {"Counter", "Value"};
+        counterTableModel = new DefaultTableModel(counterColumns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        JPanel counterPanel = new JPanel(new BorderLayout());
+        counterPanel.setBorder(BorderFactory.createTitledBorder("Counters"));
+        counterPanel.add(new JScrollPane(new JTable(counterTableModel)));
+
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, latencyPanel, counterPanel);
+        splitPane.setResizeWeight(0.6);
+
+        errorLabel = new JLabel(" ");
+        errorLabel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+
+        add(controlsPanel, BorderLayout.NORTH);
+        add(splitPane, BorderLayout.CENTER);
+        add(errorLabel, BorderLayout.SOUTH);
+    }
+
+    private void refreshMetrics() {
+        enabledCheckBox.setSelected(metrics.isEnabled());
+
+        latencyTableModel.setRowCount(0);
+        for (LatencyHistogram histogram : metrics.getHistograms()) {
+            latencyTableModel.addRow(new Object[]{
+                histogram.getName(),
+                histogram.getCount(),
+                millis(histogram.getMeanMicros()),
+                millis(histogram.getP50Micros()),
+                millis(histogram.getP99Micros()),
+                millis(histogram.getMaxMicros())
+            });
+        }
+
+        counterTableModel.setRowCount(0);
+        for (Counter counter : metrics.getCounters()) {
+            counterTableModel.addRow(new Object[]{counter.getName(), counter.getValue()});
+        }
+
+        String lastError = metrics.getLastError();
+        errorLabel.setText(lastError == null
+            ? "No errors"
+            : metrics.getErrorCount() + " errors, last: " + lastError);
+    }
+
+    private static String millis(double micros) {
+        return String.format("%.3f", micros / 1000);
+    }
+}
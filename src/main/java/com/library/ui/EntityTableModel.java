@@ -0,0 +1,98 @@
+package com.library.ui;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Table model over a list of entities. Only the indices of the rows being shown are stored;
+// cell values are read from the entities when the table asks for them.
+abstract class EntityTableModel<T> extends AbstractTableModel {
+    private final String[] columns;
+    private final Function<T, String> idOf;
+    private List<T> items = Collections.emptyList();
+    // Indices into items, or null to show every item in order
+    private int[] rows;
+    // Row of each shown entity by id, built the first time a single row is looked up
+    private Map<String, Integer> rowsById;
+
+    EntityTableModel(String[] columns, Function<T, String> idOf) {
+        this.columns = columns;
+        this.idOf = idOf;
+    }
+
+    protected abstract Object getValueAt(T item, int column);
+
+    // Fires row updates when the same entities are shown again, so the selection survives
+    // a refresh, and falls back to a full change event when the rows are different
+    public void setRows(List<T> newItems, int[] newRows) {
+        int oldCount = getRowCount();
+        boolean sameRows = true;
+        int newCount = newRows == null ? newItems.size() : newRows.length;
+        int common = Math.min(oldCount, newCount);
+        for (int i = 0; i < common && sameRows; i++) {
+            sameRows = getItemAt(i) == (newRows == null ? newItems.get(i) : newItems.get(newRows[i]));
+        }
+
+        items = newItems;
+        rows = newRows;
+        rowsById = null;
+
+        if (!sameRows || newCount < oldCount) {
+            fireTableDataChanged();
+            return;
+        }
+        if (common > 0) {
+            fireTableRowsUpdated(0, common - 1);
+        }
+        if (newCount > oldCount) {
+            fireTableRowsInserted(oldCount, newCount - 1);
+        }
+    }
+
+    // The row showing the entity, or -1
+    public int indexOf(String id) {
+        if (rowsById == null) {
+            rowsById = new HashMap<>(getRowCount() * 2);
+            for (int i = 0; i < getRowCount(); i++) {
+                rowsById.put(idOf.apply(getItemAt(i)), i);
+            }
+        }
+        Integer row = rowsById.get(id);
+        return row != null ? row : -1;
+    }
+
+    // Repaints the entity's row if it is shown
+    public void fireRowChanged(String id) {
+        int row = indexOf(id);
+        if (row != -1) {
+            fireTableRowsUpdated(row, row);
+        }
+    }
+
+    public T getItemAt(int row) {
+        return items.get(rows == null ? row : rows[row]);
+    }
+
+    @Override
+    public int getRowCount() {
+        return rows == null ? items.size() : rows.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return columns[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return getValueAt(getItemAt(row), column);
+    }
+}
@@ -6,7 +6,7 @@ import com.library.service.DataService;
 
 import javax.swing.*;
 import java.awt.*;
-import java.beans.PropertyChangeListener;
+import java.util.concurrent.TimeUnit;
 
 public class MainWindow extends JFrame {
     private final DataService dataService;
@@ -14,9 +14,12 @@ public class MainWindow extends JFrame {
     private JTabbedPane tabbedPane;
     private BooksPanel booksPanel;
     private UsersPanel usersPanel;
+    // Returned loans older than this are moved out of books.json into data/history.log
+    private static final long ARCHIVE_AFTER_DAYS = 365;
     
     public MainWindow() {
         this.dataService = new DataService();
+        this.dataService.setArchiveAge(TimeUnit.DAYS.toMillis(ARCHIVE_AFTER_DAYS));
         setupUI();
     }
     
@@ -25,6 +28,9 @@ public class MainWindow extends JFrame {
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(800, 600);
         setLocationRelativeTo(null);
+        // Covers closing the window, File > Exit and Ctrl+C alike: pending changes are
+        // written out and the journal is compacted before the JVM goes away
+        Runtime.getRuntime().addShutdownHook(new Thread(dataService::close, "data-service-shutdown"));
         
         // Create main tabbed pane
         tabbedPane = new JTabbedPane();
@@ -34,15 +40,18 @@ public class MainWindow extends JFrame {
         usersPanel = new UsersPanel(dataService);
         StatsPanel statsPanel = new StatsPanel(dataService);
         
-        // Add property change listeners
-        PropertyChangeListener statsListener = (PropertyChangeListener) statsPanel;
-        booksPanel.addPropertyChangeListener(statsListener);
-        usersPanel.addPropertyChangeListener(statsListener);
+        // Every change made through the DataService reaches the panels, whichever panel,
+        // import or API call made it
+        ChangeCoalescer changes = new ChangeCoalescer(dataService);
+        changes.addListener(booksPanel::catalogChanged);
+        changes.addListener(usersPanel::catalogChanged);
+        changes.addListener(statsPanel::catalogChanged);
         
         // Add tabs
         tabbedPane.addTab("Books", booksPanel);
         tabbedPane.addTab("Users", usersPanel);
         tabbedPane.addTab("Statistics", statsPanel);
+        tabbedPane.addTab("Diagnostics", new DiagnosticsPanel(dataService));
         
         // Add to frame
         add(tabbedPane);
@@ -50,6 +59,15 @@ public class MainWindow extends JFrame {
         // Create menu bar
         JMenuBar menuBar = new JMenuBar();
         JMenu fileMenu = new JMenu("File");
+        JMenuItem exportItem = new JMenuItem("Export to JSON");
+        exportItem.addActionListener(e -> {
+            if (dataService.exportTo(DataService.jsonFormat())) {
+                JOptionPane.showMessageDialog(this, "Data exported to data/books.json and data/users.json");
+            } else {
+                JOptionPane.showMessageDialog(this, "Export failed", "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+        fileMenu.add(exportItem);
         JMenuItem exitItem = new JMenuItem("Exit");
         exitItem.addActionListener(e -> System.exit(0));
         fileMenu.add(exitItem);
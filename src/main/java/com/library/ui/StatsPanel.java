@@ -1,28 +1,40 @@
 package com.library.ui;
 
-import com.library.model.Book;
-import com.library.model.User;
+import com.library.service.CatalogChange;
+import com.library.service.CirculationCount;
 import com.library.service.DataService;
+import com.library.service.LibraryStats;
+import com.library.service.Loan;
 
 import javax.swing.*;
 import java.awt.*;
-import java.beans.PropertyChangeListener;
-import java.beans.PropertyChangeEvent;
 import java.text.SimpleDateFormat;
-import java.util.*;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Date;
 import java.util.List;
-import java.util.stream.Collectors;
 
-public class StatsPanel extends JPanel implements PropertyChangeListener {
+public class StatsPanel extends JPanel {
+    // Longest-overdue loans listed; the label has the full count
+    private static final int OVERDUE_ROWS = 50;
+    private static final int TREND_DAYS = 30;
+    private static final int TOP_THIS_MONTH = 10;
     private final DataService dataService;
     private JLabel totalBooksLabel;
     private JLabel availableBooksLabel;
     private JLabel borrowedBooksLabel;
     private JLabel totalUsersLabel;
     private JLabel activeUsersLabel;
+    private JLabel overdueLoansLabel;
     private JTextArea popularBooksArea;
     private JTextArea activeReadersArea;
+    private JTextArea overdueLoansArea;
+    private TrendChart trendChart;
+    private JTextArea topBooksMonthArea;
+    private JTextArea topReadersMonthArea;
     private SimpleDateFormat dateFormat;
+    // Data version the labels were last filled from
+    private long shownVersion = -1;
 
     public StatsPanel(DataService dataService) {
         this.dataService = dataService;
@@ -35,7 +47,7 @@ public class StatsPanel extends JPanel implements PropertyChangeListener {
         setLayout(new BorderLayout());
         
         // Create main panel with grid layout
-        JPanel mainPanel = new JPanel(new GridLayout(2, 1, 10, 10));
+        JPanel mainPanel = new JPanel(new GridLayout(3, 1, 10, 10));
         mainPanel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
 
         // Top panel for quick stats
@@ -47,15 +59,17 @@ public class StatsPanel extends JPanel implements PropertyChangeListener {
         borrowedBooksLabel = createStatsLabel("Borrowed Books: 0");
         totalUsersLabel = createStatsLabel("Total Users: 0");
         activeUsersLabel = createStatsLabel("Active Users: 0");
+        overdueLoansLabel = createStatsLabel("Overdue Loans: 0");
 
         quickStatsPanel.add(totalBooksLabel);
         quickStatsPanel.add(availableBooksLabel);
         quickStatsPanel.add(borrowedBooksLabel);
         quickStatsPanel.add(totalUsersLabel);
         quickStatsPanel.add(activeUsersLabel);
+        quickStatsPanel.add(overdueLoansLabel);
 
         // Bottom panel for detailed stats
-        JPanel detailedStatsPanel = new JPanel(new GridLayout(1, 2, 10, 10));
+        JPanel detailedStatsPanel = new JPanel(new GridLayout(1, 3, 10, 10));
         detailedStatsPanel.setBorder(BorderFactory.createTitledBorder("Detailed Statistics"));
 
         // Popular books panel
@@ -72,11 +86,45 @@ public class StatsPanel extends JPanel implements PropertyChangeListener {
         activeReadersArea.setEditable(false);
         activeReadersPanel.add(new JScrollPane(activeReadersArea));
 
+        // Overdue loans panel
+        JPanel overdueLoansPanel = new JPanel(new BorderLayout());
+        overdueLoansPanel.setBorder(BorderFactory.createTitledBorder("Overdue Loans"));
+        overdueLoansArea = new JTextArea();
+        overdueLoansArea.setEditable(false);
+        overdueLoansPanel.add(new JScrollPane(overdueLoansArea));
+
         detailedStatsPanel.add(popularBooksPanel);
         detailedStatsPanel.add(activeReadersPanel);
+        detailedStatsPanel.add(overdueLoansPanel);
+
+        // Circulation panel, read from the daily and monthly rollups
+        JPanel circulationPanel = new JPanel(new GridLayout(1, 3, 10, 10));
+        circulationPanel.setBorder(BorderFactory.createTitledBorder("Circulation"));
+
+        JPanel trendPanel = new JPanel(new BorderLayout());
+        trendPanel.setBorder(BorderFactory.createTitledBorder("Last " + TREND_DAYS + " Days"));
+        trendChart = new TrendChart();
+        trendPanel.add(trendChart);
+
+        JPanel topBooksMonthPanel = new JPanel(new BorderLayout());
+        topBooksMonthPanel.setBorder(BorderFactory.createTitledBorder("Top Books This Month"));
+        topBooksMonthArea = new JTextArea();
+        topBooksMonthArea.setEditable(false);
+        topBooksMonthPanel.add(new JScrollPane(topBooksMonthArea));
+
+        JPanel topReadersMonthPanel = new JPanel(new BorderLayout());
+        topReadersMonthPanel.setBorder(BorderFactory.createTitledBorder("Top Readers This Month"));
+        topReadersMonthArea = new JTextArea();
+        topReadersMonthArea.setEditable(false);
+        topReadersMonthPanel.add(new JScrollPane(topReadersMonthArea));
+
+        circulationPanel.add(trendPanel);
+        circulationPanel.add(topBooksMonthPanel);
+        circulationPanel.add(topReadersMonthPanel);
 
         mainPanel.add(quickStatsPanel);
         mainPanel.add(detailedStatsPanel);
+        mainPanel.add(circulationPanel);
 
         add(mainPanel, BorderLayout.CENTER);
     }
@@ -88,79 +136,84 @@ public class StatsPanel extends JPanel implements PropertyChangeListener {
         return label;
     }
 
-    @Override
-    public void propertyChange(PropertyChangeEvent evt) {
-        if ("REFRESH_USERS".equals(evt.getPropertyName()) || 
-            "REFRESH_BOOKS".equals(evt.getPropertyName())) {
-            refreshStats();
-        }
+    // The figures are maintained as changes happen, so reading them is cheap whatever changed.
+    // Loans falling due arrive as OVERDUE changes from the service's own clock.
+    void catalogChanged(List<CatalogChange> changes) {
+        refreshStats();
     }
 
     private void refreshStats() {
-        List<Book> books = dataService.getAllBooks();
-        List<User> users = dataService.getAllUsers();
-
-        // Calculate basic stats
-        int totalBooks = books.stream().mapToInt(Book::getTotalCopies).sum();
-        int availableBooks = books.stream().mapToInt(Book::getAvailableCopies).sum();
-        int borrowedBooks = totalBooks - availableBooks;
-        int totalUsers = users.size();
-        int activeUsers = (int) users.stream()
-            .filter(user -> !user.getBorrowedBooks().isEmpty())
-            .count();
-
-        // Update basic stats labels
-        totalBooksLabel.setText("Total Books: " + totalBooks);
-        availableBooksLabel.setText("Available Books: " + availableBooks);
-        borrowedBooksLabel.setText("Borrowed Books: " + borrowedBooks);
-        totalUsersLabel.setText("Total Users: " + totalUsers);
-        activeUsersLabel.setText("Active Users: " + activeUsers);
-
-        // Calculate popular books
-        Map<String, Integer> bookBorrowCounts = new HashMap<>();
-        for (Book book : books) {
-            int borrowCount = book.getBorrowRecords().size();
-            bookBorrowCounts.put(book.getTitle(), borrowCount);
+        long version = dataService.getVersion();
+        if (version == shownVersion) {
+            return;
         }
+        shownVersion = version;
+        LibraryStats.Snapshot stats = dataService.getStats();
 
-        List<Map.Entry<String, Integer>> popularBooks = bookBorrowCounts.entrySet()
-            .stream()
-            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-            .limit(5)
-            .collect(Collectors.toList());
+        // Update basic stats labels
+        totalBooksLabel.setText("Total Books: " + stats.getTotalBooks());
+        availableBooksLabel.setText("Available Books: " + stats.getAvailableBooks());
+        borrowedBooksLabel.setText("Borrowed Books: " + stats.getBorrowedBooks());
+        totalUsersLabel.setText("Total Users: " + stats.getTotalUsers());
+        activeUsersLabel.setText("Active Users: " + stats.getActiveUsers());
 
         // Update popular books text area
         StringBuilder popularBooksText = new StringBuilder();
         popularBooksText.append("Top 5 Most Borrowed Books:\n\n");
-        for (Map.Entry<String, Integer> entry : popularBooks) {
-            popularBooksText.append(entry.getKey())
+        for (LibraryStats.Entry entry : stats.getPopularBooks()) {
+            popularBooksText.append(entry.getName())
                 .append(" (")
-                .append(entry.getValue())
+                .append(entry.getCount())
                 .append(" times)\n");
         }
         popularBooksArea.setText(popularBooksText.toString());
 
-        // Calculate active readers
-        Map<String, Integer> userBorrowCounts = new HashMap<>();
-        for (User user : users) {
-            userBorrowCounts.put(user.getName(), user.getBorrowedBooks().size());
-        }
-
-        List<Map.Entry<String, Integer>> activeReaders = userBorrowCounts.entrySet()
-            .stream()
-            .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-            .limit(5)
-            .collect(Collectors.toList());
-
         // Update active readers text area
         StringBuilder activeReadersText = new StringBuilder();
         activeReadersText.append("Top 5 Most Active Readers:\n\n");
-        for (Map.Entry<String, Integer> entry : activeReaders) {
-            activeReadersText.append(entry.getKey())
+        for (LibraryStats.Entry entry : stats.getActiveReaders()) {
+            activeReadersText.append(entry.getName())
                 .append(" (")
-                .append(entry.getValue())
+                .append(entry.getCount())
                 .append(" books)\n");
         }
         activeReadersArea.setText(activeReadersText.toString());
+
+        // Update overdue loans, longest overdue first
+        int overdueCount = dataService.getOverdueCount();
+        overdueLoansLabel.setText("Overdue Loans: " + overdueCount);
+        StringBuilder overdueText = new StringBuilder();
+        for (Loan loan : dataService.getOverdueLoans(OVERDUE_ROWS)) {
+            overdueText.append(loan.getBook().getTitle())
+                .append(" - ")
+                .append(dataService.getUserName(loan.getRecord()))
+                .append(" (due ")
+                .append(dateFormat.format(new Date(loan.getRecord().getDueDate())))
+                .append(")\n");
+        }
+        if (overdueCount > OVERDUE_ROWS) {
+            overdueText.append("\n... and ").append(overdueCount - OVERDUE_ROWS).append(" more\n");
+        }
+        overdueLoansArea.setText(overdueText.toString());
+
+        // Update circulation trend and this month's leaders
+        LocalDate today = LocalDate.now();
+        trendChart.setCounts(dataService.getCirculation(CirculationCount.Period.DAY,
+            today.minusDays(TREND_DAYS - 1), today));
+        YearMonth month = YearMonth.from(today);
+        topBooksMonthArea.setText(formatTop(dataService.getTopBooks(month, TOP_THIS_MONTH), " times"));
+        topReadersMonthArea.setText(formatTop(dataService.getTopReaders(month, TOP_THIS_MONTH), " books"));
+    }
+
+    private String formatTop(List<LibraryStats.Entry> entries, String unit) {
+        StringBuilder text = new StringBuilder();
+        for (LibraryStats.Entry entry : entries) {
+            text.append(entry.getName())
+                .append(" (")
+                .append(entry.getCount())
+                .append(unit)
+                .append(")\n");
+        }
+        return text.toString();
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package com.library.ui;
+
+import com.library.service.CirculationCount;
+
+import javax.swing.*;
+import java.awt.*;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.List;
+
+// Borrows per day as bars, with returns as a line over them
+class TrendChart extends JComponent {
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.ofPattern("MM-dd");
+    private static final int MARGIN = 18;
+    private List<CirculationCount> counts = Collections.emptyList();
+
+    TrendChart() {
+        setPreferredSize(new Dimension(300, 120));
+    }
+
+    void setCounts(List<CirculationCount> counts) {
+        this.counts = counts;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if (counts.isEmpty()) return;
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int max = 1;
+            for (CirculationCount count : counts) {
+                max = Math.max(max, Math.max(count.getBorrows(), count.getReturns()));
+            }
+            int width = getWidth() - 2 * MARGIN;
+            int height = getHeight() - 2 * MARGIN;
+            if (width <= 0 || height <= 0) return;
+            double step = (double) width / counts.size();
+            int bar = Math.max(1, (int) (step * 0.7));
+            int base = MARGIN + height;
+
+            g2.setColor(new Color(70, 130, 180));
+            for (int i = 0; i < counts.size(); i++) {
+                int h = (int) ((long) counts.get(i).getBorrows() * height / max);
+                g2.fillRect(MARGIN + (int) (i * step), base - h, bar, h);
+            }
+            g2.setColor(new Color(220, 120, 40));
+            int prevX = -1, prevY = -1;
+            for (int i = 0; i < counts.size(); i++) {
+                int x = MARGIN + (int) (i * step) + bar / 2;
+                int y = base - (int) ((long) counts.get(i).getReturns() * height / max);
+                if (prevX >= 0) {
+                    g2.drawLine(prevX, prevY, x, y);
+                }
+                prevX = x;
+                prevY = y;
+            }
+
+            g2.setColor(getForeground());
+            g2.drawLine(MARGIN, base, MARGIN + width, base);
+            FontMetrics metrics = g2.getFontMetrics();
+            g2.drawString(counts.get(0).getStart().format(DAY_FORMAT), MARGIN, base + metrics.getAscent() + 2);
+            String last = counts.get(counts.size() - 1).getStart().format(DAY_FORMAT);
+            g2.drawString(last, MARGIN + width - metrics.stringWidth(last), base + metrics.getAscent() + 2);
+            g2.drawString("max " + max + "   bars: borrows, line: returns", MARGIN, MARGIN - 4);
+        } finally {
+            g2.dispose();
+        }
+    }
+}
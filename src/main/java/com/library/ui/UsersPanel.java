@@ -1,20 +1,21 @@
 package com.library.ui;
 
 import com.library.model.User;
+import com.library.service.CatalogChange;
+import com.library.service.CatalogSnapshot;
 import com.library.service.DataService;
 
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
-import java.beans.PropertyChangeEvent;
-import java.beans.PropertyChangeListener;
 import java.util.List;
 import java.util.UUID;
 
-public class UsersPanel extends JPanel implements PropertyChangeListener {
+public class UsersPanel extends JPanel {
     private final DataService dataService;
     private JTable usersTable;
-    private DefaultTableModel tableModel;
+    private EntityTableModel<User> tableModel;
+    // Data version the table was last filled from
+    private long shownVersion = -1;
     
     public UsersPanel(DataService dataService) {
         this.dataService = dataService;
@@ -22,10 +23,24 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
         refreshTable();
     }
     
-    @Override
-    public void propertyChange(PropertyChangeEvent evt) {
-        if ("REFRESH_USERS".equals(evt.getPropertyName())) {
+    // The changes of one frame: loans and edits repaint their row, anything else reloads
+    // the list of users
+    void catalogChanged(List<CatalogChange> changes) {
+        boolean reload = false;
+        long latest = shownVersion;
+        for (CatalogChange change : changes) {
+            if (change.getEntity() != CatalogChange.Entity.USER) continue;
+            latest = Math.max(latest, change.getVersion());
+            if (change.getKind() == CatalogChange.Kind.UPDATED || change.getKind() == CatalogChange.Kind.LOANED) {
+                tableModel.fireRowChanged(change.getId());
+            } else {
+                reload = true;
+            }
+        }
+        if (reload) {
             refreshTable();
+        } else {
+            shownVersion = latest;
         }
     }
     
@@ -34,10 +49,15 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
         
         // Create table
         String[] columns = {"ID", "Name", "Email", "Books Borrowed"};
-        tableModel = new DefaultTableModel(columns, 0) {
+        tableModel = new EntityTableModel<>(columns, User::getId) {
             @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
+            protected Object getValueAt(User user, int column) {
+                switch (column) {
+                    case 0: return user.getId();
+                    case 1: return user.getName();
+                    case 2: return user.getEmail();
+                    default: return user.getBorrowedBooks().size();
+                }
             }
         };
         usersTable = new JTable(tableModel);
@@ -75,7 +95,6 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
                 String userId = (String) tableModel.getValueAt(selectedRow, 0);
                 if (confirmDelete()) {
                     dataService.deleteUser(userId);
-                    refreshTable();
                 }
             } else {
                 JOptionPane.showMessageDialog(this, "Please select a user to delete");
@@ -102,7 +121,6 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
             User user = new User(id, nameField.getText(), emailField.getText(), 
                 new String(passwordField.getPassword()));
             dataService.addUser(user);
-            refreshTable();
         }
     }
     
@@ -123,16 +141,9 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
             JOptionPane.OK_CANCEL_OPTION);
             
         if (option == JOptionPane.OK_OPTION) {
-            user.setName(nameField.getText());
-            user.setEmail(emailField.getText());
-            
             String newPassword = new String(passwordField.getPassword());
-            if (!newPassword.isEmpty()) {
-                user.setPassword(newPassword);
-            }
-            
-            dataService.updateUser(user);
-            refreshTable();
+            dataService.editUser(user.getId(), nameField.getText(), emailField.getText(),
+                newPassword.isEmpty() ? null : newPassword);
         }
     }
     
@@ -144,23 +155,16 @@ public class UsersPanel extends JPanel implements PropertyChangeListener {
     }
     
     private User getUserById(String id) {
-        return dataService.getAllUsers().stream()
-                .filter(user -> user.getId().equals(id))
-                .findFirst()
-                .orElse(null);
+        return dataService.getUserById(id);
     }
     
     private void refreshTable() {
-        tableModel.setRowCount(0);
-        List<User> users = dataService.getAllUsers();
-        for (User user : users) {
-            Object[] row = {
-                user.getId(),
-                user.getName(),
-                user.getEmail(),
-                user.getBorrowedBooks().size()
-            };
-            tableModel.addRow(row);
+        CatalogSnapshot snapshot = dataService.getSnapshot();
+        if (!snapshot.changedSince(shownVersion)) {
+            return;
         }
+        shownVersion = snapshot.getVersion();
+        tableModel.setRows(snapshot.getUsers(), null);
+        dataService.getMetrics().counter("rowsRendered").add(snapshot.getUsers().size());
     }
 }
\ No newline at end of file